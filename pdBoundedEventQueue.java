@@ -0,0 +1,222 @@
+package pdEventTransportSubsystem;
+
+import pdEventTransportSubsystem.events.*;
+
+
+/**
+ * First-in, first-out queue of events with a fixed capacity. What
+ * happens when an event arrives at a full queue is up to the overflow
+ * policy:
+ * <UL>
+ * <LI>DROP_OLDEST_UNRELIABLE: throw out the oldest unreliable event to
+ *     make room. If there is none, an unreliable newcomer is dropped and
+ *     a reliable one waits for room.
+ * <LI>BLOCK: wait for room.
+ * <LI>REJECT: drop the newcomer.
+ * </UL>
+ * Once closed, the queue takes no more events and wakes up everyone
+ * waiting on it.
+ *
+ * @author BARS Team
+ */
+public class pdBoundedEventQueue
+  {
+    /** Overflow policy: make room by dropping the oldest unreliable event. */
+    public static final int DROP_OLDEST_UNRELIABLE = 0;
+
+    /** Overflow policy: wait for room. */
+    public static final int BLOCK = 1;
+
+    /** Overflow policy: drop the new event. */
+    public static final int REJECT = 2;
+
+    /** The events, in a circular array. */
+    protected pdBasicEvent[] events = null;
+
+    /** Index of the oldest event. */
+    protected int head = 0;
+
+    /** Number of events in the queue. */
+    protected int count = 0;
+
+    /** What to do when full. */
+    protected int overflowPolicy = DROP_OLDEST_UNRELIABLE;
+
+    /** Has the queue been closed? */
+    protected boolean closed = false;
+
+    /** Number of events dropped or rejected because the queue was full. */
+    protected long droppedCount = 0;
+
+
+    /** Make a new queue holding up to capacity events. */
+    public pdBoundedEventQueue( int capacity, int overflowPolicy )
+    {
+      this.events = new pdBasicEvent[ Math.max( 1, capacity ) ];
+      this.overflowPolicy = overflowPolicy;
+    }
+
+
+    /** Turn a policy name ("dropOldestUnreliable", "block" or "reject") into a policy. */
+    public static int parseOverflowPolicy( String policyName )
+    {
+      if ( policyName.equalsIgnoreCase( "block" ) )
+        return BLOCK;
+      if ( policyName.equalsIgnoreCase( "reject" ) )
+        return REJECT;
+
+      return DROP_OLDEST_UNRELIABLE;
+    }
+
+
+    /**
+     * Add an event to the end of the queue. Returns false if the event was
+     * dropped instead.
+     */
+    public synchronized boolean put( pdBasicEvent event )
+    {
+      while ( ( count == events.length ) && !closed )
+        {
+          if ( overflowPolicy == REJECT )
+            {
+              droppedCount++;
+              return false;
+            }
+
+          if ( overflowPolicy == DROP_OLDEST_UNRELIABLE )
+            {
+              if ( removeOldestUnreliable() )
+                {
+                  droppedCount++;
+                  break;
+                }
+
+              // Nothing unreliable to make room with: drop an unreliable
+              // newcomer, but hold up the caller of a reliable one.
+              if ( !event.getTransportReliably() )
+                {
+                  droppedCount++;
+                  return false;
+                }
+            }
+
+          try
+            {
+              wait();
+            }
+          catch ( InterruptedException e )
+            {
+              return false;
+            }
+        }
+
+      if ( closed )
+        return false;
+
+      events[ ( head + count ) % events.length ] = event;
+      count++;
+      notifyAll();
+      return true;
+    }
+
+
+    /**
+     * Take the event at the front of the queue, waiting up to timeoutMillis
+     * for one (zero means wait forever). Returns null on timeout or if the
+     * queue is closed.
+     */
+    public synchronized pdBasicEvent take( long timeoutMillis )
+    {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+
+      while ( ( count == 0 ) && !closed )
+        {
+          long waitMillis = 0;
+          if ( timeoutMillis > 0 )
+            {
+              waitMillis = deadline - System.currentTimeMillis();
+              if ( waitMillis <= 0 )
+                return null;
+            }
+
+          try
+            {
+              wait( waitMillis );
+            }
+          catch ( InterruptedException e )
+            {
+              return null;
+            }
+        }
+
+      if ( count == 0 )
+        return null;
+
+      pdBasicEvent event = events[ head ];
+      events[ head ] = null;
+      head = ( head + 1 ) % events.length;
+      count--;
+      notifyAll();
+      return event;
+    }
+
+
+    /** Take the event at the front of the queue if there is one, without waiting. */
+    public synchronized pdBasicEvent poll()
+    {
+      if ( count == 0 )
+        return null;
+
+      return take( 0 );
+    }
+
+
+    /** Close the queue: no more events go in, and all waiters wake up. */
+    public synchronized void close()
+    {
+      closed = true;
+      notifyAll();
+    }
+
+
+    /** Number of events in the queue. */
+    public synchronized int size()
+    {
+      return count;
+    }
+
+
+    /** Is the queue empty? */
+    public synchronized boolean isEmpty()
+    {
+      return ( count == 0 );
+    }
+
+
+    /** Number of events dropped or rejected because the queue was full. */
+    public synchronized long getDroppedCount()
+    {
+      return droppedCount;
+    }
+
+
+    /** Remove the oldest unreliable event; returns false if there isn't one. */
+    protected boolean removeOldestUnreliable()
+    {
+      for ( int i = 0; i < count; i++ )
+        {
+          int index = ( head + i ) % events.length;
+          if ( !events[ index ].getTransportReliably() )
+            {
+              // Close the gap by moving the later events forward one place.
+              for ( int j = i; j < ( count - 1 ); j++ )
+                events[ ( head + j ) % events.length ] = events[ ( head + j + 1 ) % events.length ];
+              events[ ( head + count - 1 ) % events.length ] = null;
+              count--;
+              return true;
+            }
+        }
+
+      return false;
+    }
+  }
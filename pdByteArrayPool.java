@@ -0,0 +1,113 @@
+package pdEventTransportSubsystem;
+
+import java.util.*;
+
+
+/**
+ * Pool of reusable byte arrays (plain byte[], not java.nio buffers), so
+ * the receive paths don't make a new array for every packet. Buffers come in power-of-two sizes;
+ * ask for at least the size you need and give the buffer back when
+ * you're done with it. Only a limited number of free buffers of each
+ * size are kept; the rest are left to the garbage collector.
+ *
+ * @author BARS Team
+ */
+public class pdByteArrayPool
+  {
+    /** Smallest buffer we hand out. */
+    public static final int MIN_BUFFER_SIZE = 256;
+
+    /** Pool shared by all transporters in this VM. */
+    protected static pdByteArrayPool sharedPool = null;
+
+    /** Free buffers, one Vector per power of two. */
+    protected Vector[] freeBuffers = new Vector[ 32 ];
+
+    /** Most free buffers we keep of any one size. */
+    protected int maxFreePerSize = 16;
+
+    /** Number of buffers we've had to allocate. */
+    protected long allocatedCount = 0;
+
+    /** Number of times we handed out a pooled buffer. */
+    protected long reusedCount = 0;
+
+
+    /** Make a new pool keeping at most maxFreePerSize free buffers of each size. */
+    public pdByteArrayPool( int maxFreePerSize )
+    {
+      this.maxFreePerSize = maxFreePerSize;
+      for ( int i = 0; i < freeBuffers.length; i++ )
+        freeBuffers[ i ] = new Vector();
+    }
+
+
+    /** Get the pool shared by all transporters. */
+    public static synchronized pdByteArrayPool getSharedPool()
+    {
+      if ( sharedPool == null )
+        sharedPool = new pdByteArrayPool( 16 );
+
+      return sharedPool;
+    }
+
+
+    /** Get a buffer at least minSize bytes long. */
+    public synchronized byte[] getBuffer( int minSize )
+    {
+      int sizeClass = sizeClassFor( minSize );
+      Vector free = freeBuffers[ sizeClass ];
+
+      if ( free.size() > 0 )
+        {
+          reusedCount++;
+          byte[] buffer = ( byte[] ) free.lastElement();
+          free.removeElementAt( free.size() - 1 );
+          return buffer;
+        }
+
+      allocatedCount++;
+      return new byte[ 1 << sizeClass ];
+    }
+
+
+    /** Give a buffer back to the pool. Buffers we didn't make are ignored. */
+    public synchronized void returnBuffer( byte[] buffer )
+    {
+      if ( buffer == null )
+        return ;
+
+      int sizeClass = sizeClassFor( buffer.length );
+      if ( ( 1 << sizeClass ) != buffer.length )
+        return ;
+
+      Vector free = freeBuffers[ sizeClass ];
+      if ( free.size() < maxFreePerSize )
+        free.addElement( buffer );
+    }
+
+
+    /** Which power of two holds size bytes? */
+    protected int sizeClassFor( int size )
+    {
+      int sizeClass = 0;
+      while ( ( 1 << sizeClass ) < Math.max( size, MIN_BUFFER_SIZE ) )
+        sizeClass++;
+
+      return sizeClass;
+    }
+
+
+    /** Get the number of buffers this pool has allocated. */
+    public long getAllocatedCount()
+    {
+      return allocatedCount;
+    }
+
+
+    /** Get the number of times this pool handed out a reused buffer. */
+    public long getReusedCount()
+    {
+      return reusedCount;
+    }
+  }
@@ -0,0 +1,155 @@
+package pdEventTransportSubsystem;
+
+
+/**
+ * Remembers the IDs of events we sent recently, so a transporter
+ * that hears its own multicast traffic can ignore it. Lookups go
+ * through a pdLongHashSet; a first-in, first-out ring of IDs and
+ * send times decides what to forget. IDs are kept for a fixed time
+ * window rather than a fixed count, so the ring grows and shrinks
+ * with the send rate, up to maxSize IDs.
+ *
+ * @author BARS Team
+ */
+public class pdEchoFilter
+  {
+    /** IDs we sent within the window. */
+    protected pdLongHashSet sentIDs = null;
+
+    /** Ring of sent IDs, oldest first from head. */
+    protected long[] ringIDs = null;
+
+    /** Send time of each ID in the ring, in milliseconds. */
+    protected long[] ringTimes = null;
+
+    /** Index of the oldest entry in the ring. */
+    protected int head = 0;
+
+    /** Number of entries in the ring. */
+    protected int count = 0;
+
+    /** Fewest IDs the ring has room for. */
+    protected int minSize = 500;
+
+    /** Most IDs we'll ever remember. */
+    protected int maxSize = 100000;
+
+    /** How long to remember an ID, in milliseconds. */
+    protected long windowMillis = 5000;
+
+    /** Number of IDs forgotten only because we hit maxSize. */
+    protected long forcedEvictionCount = 0;
+
+
+    /**
+     * Make a new echo filter remembering IDs for windowMillis
+     * milliseconds, in a ring of between minSize and maxSize IDs.
+     */
+    public pdEchoFilter( long windowMillis, int minSize, int maxSize )
+    {
+      this.windowMillis = windowMillis;
+      this.minSize = Math.max( 1, minSize );
+      this.maxSize = Math.max( this.minSize, maxSize );
+      sentIDs = new pdLongHashSet( this.minSize );
+      ringIDs = new long[ this.minSize ];
+      ringTimes = new long[ this.minSize ];
+    }
+
+
+    /** Remember that we sent this event ID. */
+    public synchronized void recordSent( long eventID )
+    {
+      long now = System.currentTimeMillis();
+      expire( now );
+
+      if ( !sentIDs.add( eventID ) )
+        return ;
+
+      if ( count == ringIDs.length )
+        {
+          if ( ringIDs.length < maxSize )
+            {
+              resize( Math.min( maxSize, ringIDs.length * 2 ) );
+            }
+          else
+            {
+              forcedEvictionCount++;
+              removeOldest();
+            }
+        }
+
+      int tail = ( head + count ) % ringIDs.length;
+      ringIDs[ tail ] = eventID;
+      ringTimes[ tail ] = now;
+      count++;
+
+      // Give back room once the send rate drops off.
+      if ( ( ringIDs.length > minSize ) && ( ( count * 4 ) < ringIDs.length ) )
+        resize( Math.max( minSize, ringIDs.length / 2 ) );
+    }
+
+
+    /** Did we send this event ID recently? */
+    public synchronized boolean wasSent( long eventID )
+    {
+      return sentIDs.contains( eventID );
+    }
+
+
+    /** Forget everything. */
+    public synchronized void clear()
+    {
+      sentIDs.clear();
+      head = 0;
+      count = 0;
+    }
+
+
+    /** Number of IDs currently remembered. */
+    public synchronized int size()
+    {
+      return count;
+    }
+
+
+    /** Number of IDs forgotten early because the ring was at maxSize. */
+    public synchronized long getForcedEvictionCount()
+    {
+      return forcedEvictionCount;
+    }
+
+
+    /** Forget IDs sent longer ago than the window. */
+    protected void expire( long now )
+    {
+      while ( ( count > 0 ) && ( ( now - ringTimes[ head ] ) > windowMillis ) )
+        removeOldest();
+    }
+
+
+    /** Forget the oldest ID. */
+    protected void removeOldest()
+    {
+      sentIDs.remove( ringIDs[ head ] );
+      head = ( head + 1 ) % ringIDs.length;
+      count--;
+    }
+
+
+    /** Copy the ring into arrays of a new size. */
+    protected void resize( int newSize )
+    {
+      long[] newIDs = new long[ newSize ];
+      long[] newTimes = new long[ newSize ];
+      for ( int i = 0; i < count; i++ )
+        {
+          int from = ( head + i ) % ringIDs.length;
+          newIDs[ i ] = ringIDs[ from ];
+          newTimes[ i ] = ringTimes[ from ];
+        }
+
+      ringIDs = newIDs;
+      ringTimes = newTimes;
+      head = 0;
+    }
+  }
@@ -0,0 +1,255 @@
+package pdEventTransportSubsystem;
+
+import java.util.*;
+
+import bamboo.bbPrinter;
+
+import pdEventTransportSubsystem.events.*;
+import pdObjectSubsystem.events.*;
+
+
+/**
+ * Holds unreliable object-change events for a short tick and keeps
+ * only the newest one per target object and method; the rest are
+ * dropped before they are ever encoded. Position and orientation
+ * updates make up most unreliable traffic, and a newer one always
+ * makes older ones for the same object pointless.
+ * <P>
+ * Only pdObjectChangeUnreliableEvents are held; offer() turns
+ * everything else away so the caller sends it straight on, which
+ * keeps reliable events in order. Before a reliable event for an
+ * object goes out, flushTarget() should send whatever is being held
+ * for that object, so the reliable change isn't overtaken by an older
+ * unreliable one.
+ * <P>
+ * The key is the target ID and method name, plus the first parameter
+ * when that's a String, so setProperty-style changes to different
+ * properties don't replace each other.
+ *
+ * @author BARS Team
+ */
+public class pdEventCoalescer implements Runnable
+  {
+    /** Where held events go when flushed. */
+    protected pdEventSender sender = null;
+
+    /** Table of keys to the newest event held for that key. */
+    protected Hashtable pending = new Hashtable();
+
+    /** Keys of held events, in the order they were first seen this tick. */
+    protected Vector pendingKeys = new Vector();
+
+    /** Length of a tick, in milliseconds. */
+    protected long flushMillis = 20;
+
+    /** Flushing thread. */
+    protected Thread flushThread = null;
+
+    /** Should the flushing thread keep going? */
+    protected boolean running = false;
+
+    /**
+     * Held from draining events until they're sent, so a flushTarget()
+     * can't find nothing while a flush() is still sending an older event
+     * for that target.
+     */
+    protected Object sendLock = new Object();
+
+    /** Number of events held. */
+    protected long offeredCount = 0;
+
+    /** Number of held events replaced by newer ones. */
+    protected long supersededCount = 0;
+
+
+    /**
+     * Make a new coalescer flushing to sender every flushMillis milliseconds.
+     * The sender may be null if the owner drains the coalescer itself and
+     * never starts it or calls flush().
+     */
+    public pdEventCoalescer( pdEventSender sender, long flushMillis )
+    {
+      this.sender = sender;
+      this.flushMillis = Math.max( 1, flushMillis );
+    }
+
+
+    /** Can this event be coalesced? */
+    public static boolean isCoalescible( pdBasicEvent event )
+    {
+      return ( event instanceof pdObjectChangeUnreliableEvent );
+    }
+
+
+    /** Key under which this change event replaces older ones. */
+    public static String coalescingKey( pdObjectChangeEvent event )
+    {
+      StringBuffer key = new StringBuffer();
+      key.append( event.getTargetID() );
+      key.append( ':' );
+      key.append( event.getMethodName() );
+
+      Object[] parameters = event.getParameters();
+      if ( ( parameters != null ) && ( parameters.length > 0 ) && ( parameters[ 0 ] instanceof String ) )
+        {
+          key.append( ':' );
+          key.append( ( String ) parameters[ 0 ] );
+        }
+
+      return key.toString();
+    }
+
+
+    /** Start the flushing thread. */
+    public synchronized void start()
+    {
+      if ( running )
+        return ;
+
+      running = true;
+      flushThread = new Thread( this );
+      flushThread.setDaemon( true );
+      flushThread.start();
+    }
+
+
+    /** Stop the flushing thread and send whatever is held. */
+    public void stop()
+    {
+      synchronized ( this )
+        {
+          running = false;
+        }
+      flush();
+    }
+
+
+    /**
+     * Hold this event until the next flush, replacing any older event with
+     * the same key. Returns false, holding nothing, if the event can't be
+     * coalesced.
+     */
+    public synchronized boolean offer( pdBasicEvent event )
+    {
+      if ( !isCoalescible( event ) )
+        return false;
+
+      String key = coalescingKey( ( pdObjectChangeEvent ) event );
+      offeredCount++;
+      if ( pending.put( key, event ) == null )
+        pendingKeys.addElement( key );
+      else
+        supersededCount++;
+
+      return true;
+    }
+
+
+    /** Take all held events, in first-seen order. */
+    public synchronized Vector drain()
+    {
+      Vector events = new Vector( pendingKeys.size() );
+      for ( int i = 0; i < pendingKeys.size(); i++ )
+        events.addElement( pending.get( pendingKeys.elementAt( i ) ) );
+
+      pending.clear();
+      pendingKeys.removeAllElements();
+      return events;
+    }
+
+
+    /** Take the held events for one target object, in first-seen order. */
+    public synchronized Vector drainTarget( long targetID )
+    {
+      Vector events = new Vector();
+      int i = 0;
+      while ( i < pendingKeys.size() )
+        {
+          Object key = pendingKeys.elementAt( i );
+          pdBasicEvent event = ( pdBasicEvent ) pending.get( key );
+          if ( event.getTargetID() == targetID )
+            {
+              events.addElement( event );
+              pending.remove( key );
+              pendingKeys.removeElementAt( i );
+            }
+          else
+            {
+              i++;
+            }
+        }
+
+      return events;
+    }
+
+
+    /** Is anything being held? */
+    public synchronized boolean isEmpty()
+    {
+      return pendingKeys.isEmpty();
+    }
+
+
+    /** Send everything held now. */
+    public void flush()
+    {
+      synchronized ( sendLock )
+        {
+          sendAll( drain() );
+        }
+    }
+
+
+    /**
+     * Send everything held for one target object now. Returns once
+     * any flush already sending events for it is done.
+     */
+    public void flushTarget( long targetID )
+    {
+      synchronized ( sendLock )
+        {
+          sendAll( drainTarget( targetID ) );
+        }
+    }
+
+
+    /** Hand these events to the sender. */
+    protected void sendAll( Vector events )
+    {
+      for ( int i = 0; i < events.size(); i++ )
+        sender.sendEventNow( ( pdBasicEvent ) events.elementAt( i ) );
+    }
+
+
+    /** Flush once per tick. */
+    public void run()
+    {
+      while ( running )
+        {
+          try
+            {
+              Thread.sleep( flushMillis );
+            }
+          catch ( InterruptedException e )
+            {
+              bbPrinter.bbDebug( "pdEventCoalescer: interrupted\n" );
+            }
+
+          flush();
+        }
+    }
+
+
+    /** Number of events offered and held. */
+    public synchronized long getOfferedCount()
+    {
+      return offeredCount;
+    }
+
+
+    /** Number of held events dropped because a newer one replaced them. */
+    public synchronized long getSupersededCount()
+    {
+      return supersededCount;
+    }
+  }
@@ -0,0 +1,23 @@
+package pdEventTransportSubsystem;
+
+import java.io.*;
+
+import pdEventTransportSubsystem.events.*;
+
+
+/**
+ * EventCodec interface: turns events into bytes for the wire and
+ * back again. Every transporter encodes and decodes its events
+ * through one of these.
+ *
+ * @author BARS Team
+ */
+public interface pdEventCodec
+  {
+    /** Write an event to the output stream. */
+    public void encodeEvent( pdBasicEvent event, OutputStream out ) throws IOException;
+
+
+    /** Read an event from length bytes of the buffer, starting at offset. */
+    public pdBasicEvent decodeEvent( byte[] buffer, int offset, int length ) throws IOException;
+  }
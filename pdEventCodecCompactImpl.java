@@ -0,0 +1,146 @@
+package pdEventTransportSubsystem;
+
+import java.io.*;
+import java.util.*;
+
+import bamboo.bbPrinter;
+
+import pdEventTransportSubsystem.events.*;
+import pdKernel.*;
+
+
+/**
+ * Compact binary event codec. Event classes registered here are
+ * written as a format byte, a 16-bit type ID and then their fields,
+ * written by the pdEventFieldCodec registered for that class. Any
+ * other event falls back to Java serialization behind a different
+ * format byte, so unregistered events still get through.
+ * <P>
+ * Type IDs must be registered the same way on every node in the
+ * group.
+ *
+ * @author BARS Team
+ */
+public class pdEventCodecCompactImpl implements pdEventCodec
+  {
+    /** Format byte: the rest is a Java-serialized event. */
+    public static final int SERIALIZED_FORMAT = 0;
+
+    /** Format byte: the rest is a type ID and the event's fields. */
+    public static final int COMPACT_FORMAT = 1;
+
+    /** Table of registered event classes to their Integer type IDs. */
+    protected static Hashtable classToTypeID = new Hashtable();
+
+    /** Table of Integer type IDs to their field codecs. */
+    protected static Hashtable typeIDToFieldCodec = new Hashtable();
+
+    /** The codec every transporter uses unless told otherwise. */
+    protected static pdEventCodec defaultCodec = null;
+
+    /** Codec for events that aren't registered. */
+    protected pdEventCodec fallbackCodec = new pdEventCodecSerializationImpl();
+
+    /** Each decoding thread's own pdEventInputBuffer, reused for every event. */
+    protected ThreadLocal decodeBuffers = new ThreadLocal();
+
+
+    /**
+     * Register an event class with its type ID and field codec. The
+     * class must match the event's class exactly; subclasses need
+     * their own registration.
+     */
+    public static synchronized void registerEventType( int typeID, Class eventClass, pdEventFieldCodec fieldCodec )
+    {
+      if ( ( typeID < 0 ) || ( typeID > 0xFFFF ) )
+        {
+          bbPrinter.bbError( "pdEventCodecCompactImpl: type ID " + typeID + " for " + eventClass.getName() + " is out of range\n" );
+          return ;
+        }
+
+      Integer key = new Integer( typeID );
+      if ( typeIDToFieldCodec.containsKey( key ) )
+        {
+          bbPrinter.bbWarn( "pdEventCodecCompactImpl: type ID " + typeID + " already registered; replacing it with " + eventClass.getName() + "\n" );
+        }
+
+      classToTypeID.put( eventClass, key );
+      typeIDToFieldCodec.put( key, fieldCodec );
+    }
+
+
+    /**
+     * Get the codec transporters should use by default. The eventCodec
+     * command line option picks it: "serialization" (the default, and
+     * what nodes without this codec speak) or "compact", which only
+     * pays off once field codecs are registered for the busy event
+     * types.
+     */
+    public static synchronized pdEventCodec getDefaultCodec()
+    {
+      if ( defaultCodec == null )
+        {
+          String codecName = CommandLine.get( "eventCodec", "serialization" );
+          if ( codecName.equalsIgnoreCase( "compact" ) )
+            defaultCodec = new pdEventCodecCompactImpl();
+          else
+            defaultCodec = new pdEventCodecSerializationImpl();
+        }
+
+      return defaultCodec;
+    }
+
+
+    /** Write an event to the output stream. */
+    public void encodeEvent( pdBasicEvent event, OutputStream out ) throws IOException
+    {
+      Integer typeID = ( Integer ) classToTypeID.get( event.getClass() );
+
+      // Not registered: Java serialization it is.
+      if ( typeID == null )
+        {
+          out.write( SERIALIZED_FORMAT );
+          fallbackCodec.encodeEvent( event, out );
+          return ;
+        }
+
+      pdEventFieldCodec fieldCodec = ( pdEventFieldCodec ) typeIDToFieldCodec.get( typeID );
+      DataOutputStream dataOut = new DataOutputStream( out );
+      dataOut.writeByte( COMPACT_FORMAT );
+      dataOut.writeShort( typeID.intValue() );
+      fieldCodec.writeFields( event, dataOut );
+      dataOut.flush();
+    }
+
+
+    /** Read an event from length bytes of the buffer, starting at offset. */
+    public pdBasicEvent decodeEvent( byte[] buffer, int offset, int length ) throws IOException
+    {
+      if ( length < 1 )
+        throw new IOException( "pdEventCodecCompactImpl: empty event" );
+
+      int format = buffer[ offset ];
+
+      if ( format == SERIALIZED_FORMAT )
+        return fallbackCodec.decodeEvent( buffer, offset + 1, length - 1 );
+
+      if ( format != COMPACT_FORMAT )
+        throw new IOException( "pdEventCodecCompactImpl: unknown event format " + format );
+
+      pdEventInputBuffer inBuffer = ( pdEventInputBuffer ) decodeBuffers.get();
+      if ( inBuffer == null )
+        {
+          inBuffer = new pdEventInputBuffer();
+          decodeBuffers.set( inBuffer );
+        }
+      inBuffer.setBuffer( buffer, offset + 1, length - 1 );
+
+      DataInputStream dataIn = inBuffer.getDataInput();
+      int typeID = dataIn.readUnsignedShort();
+      pdEventFieldCodec fieldCodec = ( pdEventFieldCodec ) typeIDToFieldCodec.get( new Integer( typeID ) );
+      if ( fieldCodec == null )
+        throw new IOException( "pdEventCodecCompactImpl: unknown event type ID " + typeID );
+
+      return fieldCodec.readFields( dataIn );
+    }
+  }
@@ -0,0 +1,45 @@
+package pdEventTransportSubsystem;
+
+import java.io.*;
+
+import pdEventTransportSubsystem.events.*;
+
+
+/**
+ * Event codec using plain Java serialization. This is what the
+ * transporters always did; it works for any event but writes the
+ * full class descriptor of every event it sends.
+ *
+ * @author BARS Team
+ */
+public class pdEventCodecSerializationImpl implements pdEventCodec
+  {
+    /** Write an event to the output stream. */
+    public void encodeEvent( pdBasicEvent event, OutputStream out ) throws IOException
+    {
+      ObjectOutputStream outObjectStream = new ObjectOutputStream( out );
+      outObjectStream.writeObject( event );
+      outObjectStream.flush();
+    }
+
+
+    /** Read an event from length bytes of the buffer, starting at offset. */
+    public pdBasicEvent decodeEvent( byte[] buffer, int offset, int length ) throws IOException
+    {
+      ByteArrayInputStream inByteStream = new ByteArrayInputStream( buffer, offset, length );
+      ObjectInputStream inObjectStream = new ObjectInputStream( inByteStream );
+
+      try
+        {
+          return ( pdBasicEvent ) inObjectStream.readObject();
+        }
+      catch ( ClassNotFoundException e )
+        {
+          throw new IOException( "pdEventCodecSerializationImpl: unknown event class " + e.getMessage() );
+        }
+      finally
+        {
+          inObjectStream.close();
+        }
+    }
+  }
@@ -0,0 +1,175 @@
+package pdEventTransportSubsystem;
+
+import bamboo.bbPrinter;
+
+
+/**
+ * Packs several encoded events into one multicast datagram. Events
+ * are added as they are sent; the batch goes out when the next event
+ * won't fit in maxBytes, or when the oldest event in it has waited
+ * flushMillis, whichever comes first.
+ * <P>
+ * A batch datagram is the BATCH_TAG byte followed, for each event, by
+ * its length as an unsigned short and then its encoded bytes. The tag
+ * can't be mistaken for the first byte of a single encoded event.
+ *
+ * @author BARS Team
+ */
+public class pdEventDatagramBatcher implements Runnable
+  {
+    /** First byte of a batch datagram. */
+    public static final int BATCH_TAG = 0x7E;
+
+    /** Bytes in front of each event in a batch. */
+    public static final int EVENT_HEADER_SIZE = 2;
+
+    /** The transporter that sends our datagrams. */
+    protected pdEventTransporterIPMulticastImpl transporter = null;
+
+    /** The batch being filled. */
+    protected byte[] batchBuffer = null;
+
+    /** Bytes used in batchBuffer. */
+    protected int batchLength = 0;
+
+    /** Events in the current batch. */
+    protected int batchEventCount = 0;
+
+    /** When the first event went into the current batch, in milliseconds. */
+    protected long batchStartTime = 0;
+
+    /** Longest an event waits in a batch, in milliseconds. */
+    protected long flushMillis = 10;
+
+    /** Flushing thread. */
+    protected Thread flushThread = null;
+
+    /** Should the flushing thread keep going? */
+    protected boolean running = false;
+
+    /** Number of batch datagrams sent. */
+    protected long batchCount = 0;
+
+    /** Number of events sent in batches. */
+    protected long batchedEventCount = 0;
+
+
+    /** Make a new batcher for this transporter. */
+    public pdEventDatagramBatcher( pdEventTransporterIPMulticastImpl transporter, int maxBytes, long flushMillis )
+    {
+      this.transporter = transporter;
+      this.batchBuffer = new byte[ Math.max( maxBytes, EVENT_HEADER_SIZE + 2 ) ];
+      this.flushMillis = Math.max( 1, flushMillis );
+    }
+
+
+    /** Start the flushing thread. */
+    public synchronized void start()
+    {
+      if ( running )
+        return ;
+
+      running = true;
+      flushThread = new Thread( this );
+      flushThread.setDaemon( true );
+      flushThread.start();
+    }
+
+
+    /** Send what's left and stop the flushing thread. */
+    public synchronized void stop()
+    {
+      flush();
+      running = false;
+      notifyAll();
+    }
+
+
+    /** Add an encoded event to the batch. */
+    public synchronized void addEvent( byte[] eventBuffer, int offset, int length )
+    {
+      // Too big to ever share a datagram: send it on its own.
+      if ( ( 1 + EVENT_HEADER_SIZE + length ) > batchBuffer.length )
+        {
+          flush();
+          transporter.sendDatagram( eventBuffer, offset, length );
+          return ;
+        }
+
+      if ( ( batchLength + EVENT_HEADER_SIZE + length ) > batchBuffer.length )
+        flush();
+
+      if ( batchLength == 0 )
+        {
+          batchBuffer[ 0 ] = ( byte ) BATCH_TAG;
+          batchLength = 1;
+          batchStartTime = System.currentTimeMillis();
+          notifyAll();
+        }
+
+      batchBuffer[ batchLength++ ] = ( byte ) ( length >>> 8 );
+      batchBuffer[ batchLength++ ] = ( byte ) length;
+      System.arraycopy( eventBuffer, offset, batchBuffer, batchLength, length );
+      batchLength += length;
+      batchEventCount++;
+    }
+
+
+    /** Send the current batch now. */
+    public synchronized void flush()
+    {
+      if ( batchEventCount == 0 )
+        return ;
+
+      transporter.sendDatagram( batchBuffer, 0, batchLength );
+      batchCount++;
+      batchedEventCount += batchEventCount;
+      batchLength = 0;
+      batchEventCount = 0;
+    }
+
+
+    /** Flush batches that have waited long enough. */
+    public synchronized void run()
+    {
+      while ( running )
+        {
+          try
+            {
+              if ( batchEventCount == 0 )
+                {
+                  wait();
+                }
+              else
+                {
+                  long waited = System.currentTimeMillis() - batchStartTime;
+                  if ( waited >= flushMillis )
+                    flush();
+                  else
+                    wait( flushMillis - waited );
+                }
+            }
+          catch ( InterruptedException e )
+            {
+              bbPrinter.bbDebug( "pdEventDatagramBatcher: interrupted\n" );
+            }
+        }
+    }
+
+
+    /** Average number of events per batch datagram so far. */
+    public synchronized double getAverageBatchSize()
+    {
+      if ( batchCount == 0 )
+        return 0;
+
+      return ( ( double ) batchedEventCount ) / batchCount;
+    }
+
+
+    /** Number of batch datagrams sent. */
+    public synchronized long getBatchCount()
+    {
+      return batchCount;
+    }
+  }
@@ -0,0 +1,24 @@
+package pdEventTransportSubsystem;
+
+import java.io.*;
+
+import pdEventTransportSubsystem.events.*;
+
+
+/**
+ * EventFieldCodec interface: writes and reads the fields of one
+ * event class, field by field. Register one of these with
+ * pdEventCodecCompactImpl to keep that event class out of
+ * Java serialization.
+ *
+ * @author BARS Team
+ */
+public interface pdEventFieldCodec
+  {
+    /** Write the fields of this event. */
+    public void writeFields( pdBasicEvent event, DataOutput out ) throws IOException;
+
+
+    /** Read the fields written by writeFields and make a new event from them. */
+    public pdBasicEvent readFields( DataInput in ) throws IOException;
+  }
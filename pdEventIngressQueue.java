@@ -0,0 +1,170 @@
+package pdObjectSubsystem;
+
+import java.util.*;
+
+import bamboo.bbPrinter;
+
+import pdEventTransportSubsystem.events.*;
+
+
+/**
+ * Queue in front of an object and event manager, with its own
+ * dispatcher thread, for events arriving from the network. Any thread
+ * may post an event; posting only holds
+ * the queue's lock long enough to add the event to a Vector, so
+ * transporter threads never wait on the manager or its listeners. The
+ * dispatcher swaps the full Vector for an empty one and hands the
+ * whole batch to the manager with the lock released.
+ *
+ * @author BARS Team
+ */
+public class pdEventIngressQueue implements Runnable
+  {
+    /** The manager events are dispatched to. */
+    protected pdObjectAndEventManagerImpl manager = null;
+
+    /** Events posted since the dispatcher last took a batch. */
+    protected Vector incoming = new Vector();
+
+    /** The batch the dispatcher is working through. */
+    protected Vector draining = new Vector();
+
+    /** Is the dispatcher thread running? */
+    protected boolean running = false;
+
+    /** The dispatcher thread. */
+    protected Thread dispatcherThread = null;
+
+    /** Number of events posted. */
+    protected long postedCount = 0;
+
+    /** Most events ever waiting at once. */
+    protected int maxDepth = 0;
+
+
+    /** Make a new ingress queue for this manager. */
+    public pdEventIngressQueue( pdObjectAndEventManagerImpl manager )
+    {
+      this.manager = manager;
+    }
+
+
+    /** Start the dispatcher thread. */
+    public synchronized void start()
+    {
+      if ( running )
+        return ;
+
+      running = true;
+      dispatcherThread = new Thread( this, "pdEventIngressQueue" );
+      dispatcherThread.setDaemon( true );
+      dispatcherThread.start();
+    }
+
+
+    /** Stop the dispatcher thread once it has dispatched what's waiting. */
+    public synchronized void stop()
+    {
+      running = false;
+      notifyAll();
+    }
+
+
+    /** Is the caller the dispatcher thread? */
+    public boolean isDispatcherThread()
+    {
+      return ( Thread.currentThread() == dispatcherThread );
+    }
+
+
+    /**
+     * Post an event for the dispatcher thread. Never waits on dispatching.
+     * If the dispatcher isn't running, nothing would ever dispatch the
+     * event, so it isn't queued and false comes back.
+     */
+    public synchronized boolean post( pdBasicEvent event )
+    {
+      if ( !running )
+        {
+          bbPrinter.bbWarn( "pdEventIngressQueue: not running; not queueing " + event.getClass().getName() + "\n" );
+          return false;
+        }
+
+      incoming.addElement( event );
+      postedCount++;
+      if ( incoming.size() > maxDepth )
+        maxDepth = incoming.size();
+
+      if ( incoming.size() == 1 )
+        notifyAll();
+      return true;
+    }
+
+
+    /** Take a batch of waiting events, waiting for some if need be. Returns null once stopped and empty. */
+    protected synchronized Vector takeBatch()
+    {
+      while ( incoming.isEmpty() )
+        {
+          if ( !running )
+            return null;
+
+          try
+            {
+              wait();
+            }
+          catch ( InterruptedException e )
+            {
+              bbPrinter.bbDebug( "pdEventIngressQueue: interrupted\n" );
+            }
+        }
+
+      Vector batch = incoming;
+      incoming = draining;
+      draining = batch;
+      return batch;
+    }
+
+
+    /** Dispatch batches of events until stopped. */
+    public void run()
+    {
+      Vector batch;
+      while ( ( batch = takeBatch() ) != null )
+        {
+          for ( int i = 0; i < batch.size(); i++ )
+            {
+              try
+                {
+                  manager.dispatchEvent( ( pdBasicEvent ) batch.elementAt( i ) );
+                }
+              catch ( Exception e )
+                {
+                  e.printStackTrace();
+                }
+            }
+          batch.removeAllElements();
+        }
+    }
+
+
+    /** Number of events waiting. */
+    public synchronized int size()
+    {
+      return incoming.size();
+    }
+
+
+    /** Number of events posted. */
+    public synchronized long getPostedCount()
+    {
+      return postedCount;
+    }
+
+
+    /** Most events ever waiting at once. */
+    public synchronized int getMaxDepth()
+    {
+      return maxDepth;
+    }
+  }
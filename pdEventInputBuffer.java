@@ -0,0 +1,42 @@
+package pdEventTransportSubsystem;
+
+import java.io.*;
+
+
+/**
+ * Input stream over a range of a byte array that can be pointed at a
+ * new range, so a decoder can read packet after packet without making
+ * new streams. Comes with a DataInputStream over itself.
+ *
+ * @author BARS Team
+ */
+public class pdEventInputBuffer extends ByteArrayInputStream
+  {
+    /** Data input reading from this buffer. */
+    protected DataInputStream dataInput = null;
+
+
+    /** Make a new, empty input buffer. */
+    public pdEventInputBuffer()
+    {
+      super( new byte[ 0 ] );
+      dataInput = new DataInputStream( this );
+    }
+
+
+    /** Read length bytes of buffer from offset from now on. */
+    public void setBuffer( byte[] buffer, int offset, int length )
+    {
+      this.buf = buffer;
+      this.pos = offset;
+      this.count = Math.min( offset + length, buffer.length );
+      this.mark = offset;
+    }
+
+
+    /** Get the data input reading from this buffer. */
+    public DataInputStream getDataInput()
+    {
+      return dataInput;
+    }
+  }
@@ -0,0 +1,181 @@
+package pdEventTransportSubsystem;
+
+import bamboo.bbPrinter;
+
+import pdEventTransportSubsystem.events.*;
+import pdKernel.*;
+
+
+/**
+ * Token-bucket rate limiter for events coming off the network.
+ * Up to burstSize events go through back to back; after that events
+ * go through at maxEventsPerSecond. What happens to an event over the
+ * rate depends on the policy: DELAY holds the receiving thread until
+ * the event may go (backpressure onto the socket buffer), and
+ * DROP_UNRELIABLE drops unreliable events and delays reliable ones.
+ * A delayed event takes its token at once, leaving the bucket in debt,
+ * and waits without holding the limiter, so other threads can still
+ * be turned away or let through meanwhile. A rate of zero or less
+ * means no limit at all.
+ * <P>
+ * A thread that mustn't wait, such as a decode worker shared with other
+ * transporters and senders, can ask not to: then unreliable events over
+ * the rate are dropped whatever the policy, and reliable ones go
+ * through at once, running the bucket into debt (down to minus
+ * burstSize) that later unreliable events pay off.
+ *
+ * @author BARS Team
+ */
+public class pdEventRateLimiter
+  {
+    /** Policy: wait until the event may go. */
+    public static final int DELAY = 0;
+
+    /** Policy: drop unreliable events over the rate, delay reliable ones. */
+    public static final int DROP_UNRELIABLE = 1;
+
+    /** Events per second allowed through; zero or less for no limit. */
+    protected double maxEventsPerSecond = 0;
+
+    /** Number of events allowed through back to back. */
+    protected double burstSize = 1;
+
+    /** What to do with events over the rate. */
+    protected int policy = DELAY;
+
+    /** Tokens currently in the bucket. */
+    protected double tokens = 0;
+
+    /** When we last refilled the bucket, in milliseconds. */
+    protected long lastRefillTime = 0;
+
+    /** Number of events dropped for going over the rate. */
+    protected long droppedCount = 0;
+
+
+    /** Make a new rate limiter. */
+    public pdEventRateLimiter( double maxEventsPerSecond, int burstSize, int policy )
+    {
+      this.maxEventsPerSecond = maxEventsPerSecond;
+      this.burstSize = Math.max( 1, burstSize );
+      this.policy = policy;
+      this.tokens = this.burstSize;
+      this.lastRefillTime = System.currentTimeMillis();
+    }
+
+
+    /**
+     * Make a rate limiter from the command line options
+     * &lt;prefix&gt;MaxReceiveRate (events per second, default 0 for no limit),
+     * &lt;prefix&gt;ReceiveBurst (default 50) and &lt;prefix&gt;ReceivePolicy
+     * ("delay", the default, or "dropUnreliable").
+     */
+    public static pdEventRateLimiter createFromCommandLine( String prefix )
+    {
+      double rate = 0;
+      int burst = 50;
+      int policy = DELAY;
+
+      try
+        {
+          rate = Double.valueOf( CommandLine.get( prefix + "MaxReceiveRate", "0" ) ).doubleValue();
+          burst = Integer.parseInt( CommandLine.get( prefix + "ReceiveBurst", "50" ) );
+        }
+      catch ( NumberFormatException e )
+        {
+          bbPrinter.bbError( prefix + "MaxReceiveRate or " + prefix + "ReceiveBurst not a number! Using no limit...\n" );
+          rate = 0;
+          burst = 50;
+        }
+
+      if ( CommandLine.get( prefix + "ReceivePolicy", "delay" ).equalsIgnoreCase( "dropUnreliable" ) )
+        policy = DROP_UNRELIABLE;
+
+      return new pdEventRateLimiter( rate, burst, policy );
+    }
+
+
+    /**
+     * Should this event be delivered? Returns false if the event should be
+     * dropped; may block the calling thread first if it has to wait for
+     * its token.
+     */
+    public boolean admit( pdBasicEvent event )
+    {
+      return admit( event, true );
+    }
+
+
+    /**
+     * Should this event be delivered? Returns false if the event should be
+     * dropped. Blocks the calling thread while it waits for its token only
+     * if mayWait is true; otherwise drops an unreliable event over the
+     * rate and lets a reliable one through.
+     */
+    public boolean admit( pdBasicEvent event, boolean mayWait )
+    {
+      long waitMillis;
+      synchronized ( this )
+        {
+          if ( maxEventsPerSecond <= 0 )
+            return true;
+
+          refill();
+          if ( tokens >= 1 )
+            {
+              tokens -= 1;
+              return true;
+            }
+
+          if ( ( ( policy == DROP_UNRELIABLE ) || !mayWait ) && !event.getTransportReliably() )
+            {
+              droppedCount++;
+              return false;
+            }
+
+          if ( !mayWait )
+            {
+              tokens = Math.max( -burstSize, tokens - 1 );
+              return true;
+            }
+
+          // Take the token now and wait, outside the lock, until it's earned.
+          tokens -= 1;
+          waitMillis = ( long ) Math.ceil( ( -tokens * 1000 ) / maxEventsPerSecond );
+        }
+
+      try
+        {
+          Thread.sleep( Math.max( 1, waitMillis ) );
+        }
+      catch ( InterruptedException e )
+        {
+          // go on anyway
+        }
+
+      return true;
+    }
+
+
+    /** Add the tokens earned since the last refill. */
+    protected void refill()
+    {
+      long now = System.currentTimeMillis();
+      tokens = Math.min( burstSize, tokens + ( ( ( now - lastRefillTime ) * maxEventsPerSecond ) / 1000 ) );
+      lastRefillTime = now;
+    }
+
+
+    /** Get the number of events dropped for going over the rate. */
+    public synchronized long getDroppedCount()
+    {
+      return droppedCount;
+    }
+
+
+    /** Get the rate limit in events per second (zero or less for none). */
+    public double getMaxEventsPerSecond()
+    {
+      return maxEventsPerSecond;
+    }
+  }
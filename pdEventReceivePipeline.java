@@ -0,0 +1,138 @@
+package pdEventTransportSubsystem;
+
+import bamboo.bbPrinter;
+
+import pdKernel.*;
+
+
+/**
+ * Decode stage shared by the transporters' receive threads. A receive
+ * thread hands over the raw bytes it got, in a buffer from the shared
+ * pdByteArrayPool, and goes straight back to receiving; a pool of
+ * decode threads turns the bytes into events and delivers them.
+ * <P>
+ * Everything from one sender goes to the same decode thread, in the
+ * order it was handed over, so events from a sender are delivered in
+ * order; different senders are decoded in parallel. Buffers go back
+ * to the pool once decoded.
+ *
+ * @author BARS Team
+ */
+public class pdEventReceivePipeline
+  {
+    /** Pipeline shared by all transporters in this VM, if there is one. */
+    protected static pdEventReceivePipeline sharedPipeline = null;
+
+    /** Have we read the command line for the shared pipeline yet? */
+    protected static boolean sharedPipelineChecked = false;
+
+    /** The decode threads. */
+    protected pdEventReceiveWorker[] workers = null;
+
+
+    /** Make and start a pipeline of numThreads decode threads, each queueing up to queueSize buffers. */
+    public pdEventReceivePipeline( int numThreads, int queueSize, pdByteArrayPool bufferPool )
+    {
+      workers = new pdEventReceiveWorker[ numThreads ];
+      for ( int i = 0; i < numThreads; i++ )
+        {
+          workers[ i ] = new pdEventReceiveWorker( bufferPool, queueSize );
+          Thread workerThread = new Thread( workers[ i ], "pdEventReceiveWorker-" + i );
+          workerThread.setDaemon( true );
+          workerThread.start();
+        }
+    }
+
+
+    /**
+     * Get the pipeline shared by all transporters, or null to decode on
+     * the receive threads. receiveDecodeThreads on the command line is
+     * the number of decode threads (default 0, meaning no pipeline), and
+     * receiveDecodeQueueSize how many buffers each may have waiting
+     * (default 1000).
+     */
+    public static synchronized pdEventReceivePipeline getSharedPipeline()
+    {
+      if ( sharedPipelineChecked )
+        return sharedPipeline;
+      sharedPipelineChecked = true;
+
+      int numThreads = 0;
+      int queueSize = 1000;
+      try
+        {
+          numThreads = Integer.parseInt( CommandLine.get( "receiveDecodeThreads", "0" ) );
+          queueSize = Integer.parseInt( CommandLine.get( "receiveDecodeQueueSize", "1000" ) );
+        }
+      catch ( NumberFormatException e )
+        {
+          bbPrinter.bbError( "receiveDecodeThreads or receiveDecodeQueueSize not a number! Decoding on the receive threads...\n" );
+          numThreads = 0;
+        }
+
+      if ( numThreads > 0 )
+        sharedPipeline = new pdEventReceivePipeline( numThreads, Math.max( 1, queueSize ), pdByteArrayPool.getSharedPool() );
+
+      return sharedPipeline;
+    }
+
+
+    /**
+     * Hand over length bytes of buffer from offset, received from sender,
+     * to be decoded by decoder. The buffer must come from the pipeline's
+     * pool; it goes back there once decoded. Waits if that sender's
+     * decode thread is too far behind.
+     */
+    public void submit( Object sender, pdRawEventDecoder decoder, byte[] buffer, int offset, int length )
+    {
+      int index = ( sender.hashCode() & 0x7FFFFFFF ) % workers.length;
+      workers[ index ].put( sender, decoder, buffer, offset, length );
+    }
+
+
+    /**
+     * Hand over a buffer like submit(), but never wait and never drop:
+     * if that sender's decode thread is too far behind, the buffer waits
+     * on its overflow list. For receive threads that mustn't be held up
+     * and whose events mustn't be lost, such as a reliable library's own
+     * thread.
+     */
+    public void spill( Object sender, pdRawEventDecoder decoder, byte[] buffer, int offset, int length )
+    {
+      int index = ( sender.hashCode() & 0x7FFFFFFF ) % workers.length;
+      workers[ index ].spill( sender, decoder, buffer, offset, length );
+    }
+
+
+    /** Number of buffers waiting to be decoded, across all decode threads. */
+    public int getQueuedCount()
+    {
+      int queued = 0;
+      for ( int i = 0; i < workers.length; i++ )
+        queued += workers[ i ].getQueuedCount();
+
+      return queued;
+    }
+
+
+    /** Number of buffers decoded, across all decode threads. */
+    public long getDecodedCount()
+    {
+      long decoded = 0;
+      for ( int i = 0; i < workers.length; i++ )
+        decoded += workers[ i ].getDecodedCount();
+
+      return decoded;
+    }
+
+
+    /** Number of buffers spill() parked on overflow lists, across all decode threads. */
+    public long getSpilledCount()
+    {
+      long spilled = 0;
+      for ( int i = 0; i < workers.length; i++ )
+        spilled += workers[ i ].getSpilledCount();
+
+      return spilled;
+    }
+  }
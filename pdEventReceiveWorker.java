@@ -0,0 +1,208 @@
+package pdEventTransportSubsystem;
+
+import java.util.*;
+
+import bamboo.bbPrinter;
+
+
+/**
+ * One decode thread of a pdEventReceivePipeline, with its own queue of
+ * received buffers. The queue is a ring of parallel arrays, so handing
+ * over a buffer makes no garbage. A full queue makes put() wait, while
+ * spill() parks the buffer on an overflow list that is drained into
+ * the queue, in order, as it empties.
+ *
+ * @author BARS Team
+ */
+public class pdEventReceiveWorker implements Runnable
+  {
+    /** Where buffers go once decoded. */
+    protected pdByteArrayPool bufferPool = null;
+
+    /** Sender of each queued buffer. */
+    protected Object[] senders = null;
+
+    /** Decoder for each queued buffer. */
+    protected pdRawEventDecoder[] decoders = null;
+
+    /** The queued buffers. */
+    protected byte[][] buffers = null;
+
+    /** Offset of the data in each queued buffer. */
+    protected int[] offsets = null;
+
+    /** Length of the data in each queued buffer. */
+    protected int[] lengths = null;
+
+    /** Index of the oldest queued buffer. */
+    protected int head = 0;
+
+    /** Number of queued buffers. */
+    protected int count = 0;
+
+    /** Number of buffers decoded. */
+    protected long decodedCount = 0;
+
+    /**
+     * Buffers spill() couldn't fit in the queue, oldest first, each an
+     * Object[] of sender, decoder, buffer, offset and length.
+     */
+    protected Vector overflow = new Vector();
+
+    /** Number of buffers spill() parked on the overflow list. */
+    protected long spilledCount = 0;
+
+
+    /** Make a new worker with room to queue queueSize buffers. */
+    public pdEventReceiveWorker( pdByteArrayPool bufferPool, int queueSize )
+    {
+      this.bufferPool = bufferPool;
+      senders = new Object[ queueSize ];
+      decoders = new pdRawEventDecoder[ queueSize ];
+      buffers = new byte[ queueSize ][];
+      offsets = new int[ queueSize ];
+      lengths = new int[ queueSize ];
+    }
+
+
+    /** Queue a buffer for decoding, waiting for room if need be. */
+    public synchronized void put( Object sender, pdRawEventDecoder decoder, byte[] buffer, int offset, int length )
+    {
+      while ( count == buffers.length )
+        {
+          try
+            {
+              wait();
+            }
+          catch ( InterruptedException e )
+            {
+              bbPrinter.bbDebug( "pdEventReceiveWorker: interrupted\n" );
+            }
+        }
+
+      enqueue( sender, decoder, buffer, offset, length );
+    }
+
+
+    /**
+     * Queue a buffer for decoding without waiting. If the queue is full,
+     * or older buffers are already waiting on the overflow list, the
+     * buffer goes on the end of the overflow list instead.
+     */
+    public synchronized void spill( Object sender, pdRawEventDecoder decoder, byte[] buffer, int offset, int length )
+    {
+      if ( ( count == buffers.length ) || !overflow.isEmpty() )
+        {
+          spilledCount++;
+          overflow.addElement( new Object[] { sender, decoder, buffer, new Integer( offset ), new Integer( length ) } );
+          return ;
+        }
+
+      enqueue( sender, decoder, buffer, offset, length );
+    }
+
+
+    /** Move buffers from the overflow list into the queue while there's room. */
+    protected void drainOverflow()
+    {
+      while ( ( count < buffers.length ) && !overflow.isEmpty() )
+        {
+          Object[] spilled = ( Object[] ) overflow.elementAt( 0 );
+          overflow.removeElementAt( 0 );
+          enqueue( spilled[ 0 ], ( pdRawEventDecoder ) spilled[ 1 ], ( byte[] ) spilled[ 2 ],
+                   ( ( Integer ) spilled[ 3 ] ).intValue(), ( ( Integer ) spilled[ 4 ] ).intValue() );
+        }
+    }
+
+
+    /** Add a buffer at the end of the queue, which has room. */
+    protected void enqueue( Object sender, pdRawEventDecoder decoder, byte[] buffer, int offset, int length )
+    {
+      int tail = ( head + count ) % buffers.length;
+      senders[ tail ] = sender;
+      decoders[ tail ] = decoder;
+      buffers[ tail ] = buffer;
+      offsets[ tail ] = offset;
+      lengths[ tail ] = length;
+      count++;
+      notifyAll();
+    }
+
+
+    /** Decode queued buffers in order, forever. */
+    public void run()
+    {
+      while ( true )
+        {
+          Object sender;
+          pdRawEventDecoder decoder;
+          byte[] buffer;
+          int offset;
+          int length;
+
+          synchronized ( this )
+            {
+              while ( count == 0 )
+                {
+                  try
+                    {
+                      wait();
+                    }
+                  catch ( InterruptedException e )
+                    {
+                      bbPrinter.bbDebug( "pdEventReceiveWorker: interrupted\n" );
+                    }
+                }
+
+              sender = senders[ head ];
+              decoder = decoders[ head ];
+              buffer = buffers[ head ];
+              offset = offsets[ head ];
+              length = lengths[ head ];
+              senders[ head ] = null;
+              decoders[ head ] = null;
+              buffers[ head ] = null;
+              head = ( head + 1 ) % buffers.length;
+              count--;
+              drainOverflow();
+              notifyAll();
+            }
+
+          try
+            {
+              decoder.decodeRawEvent( sender, buffer, offset, length );
+            }
+          catch ( Exception e )
+            {
+              e.printStackTrace();
+            }
+
+          bufferPool.returnBuffer( buffer );
+          synchronized ( this )
+            {
+              decodedCount++;
+            }
+        }
+    }
+
+
+    /** Number of buffers waiting to be decoded, overflow included. */
+    public synchronized int getQueuedCount()
+    {
+      return count + overflow.size();
+    }
+
+
+    /** Number of buffers decoded. */
+    public synchronized long getDecodedCount()
+    {
+      return decodedCount;
+    }
+
+
+    /** Number of buffers spill() parked on the overflow list. */
+    public synchronized long getSpilledCount()
+    {
+      return spilledCount;
+    }
+  }
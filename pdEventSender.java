@@ -0,0 +1,18 @@
+package pdEventTransportSubsystem;
+
+import pdEventTransportSubsystem.events.*;
+
+
+/**
+ * EventSender interface: something that puts an event on the wire
+ * immediately, skipping any queueing or coalescing it would normally
+ * do in sendEvent. Send-side stages such as pdEventCoalescer hand
+ * their events back to the transporter through this.
+ *
+ * @author BARS Team
+ */
+public interface pdEventSender
+  {
+    /** Put this event on the wire now. */
+    public void sendEventNow( pdBasicEvent event );
+  }
@@ -40,6 +40,14 @@ public interface pdEventTransporter extends pdSystemObject, pdActiveObject, Seri
     public void sendEvent( pdBasicEvent event );
 
 
+    /** Set the codec this transporter uses to encode and decode events. */
+    public void setEventCodec( pdEventCodec eventCodec );
+
+
+    /** Get the codec this transporter uses to encode and decode events. */
+    public pdEventCodec getEventCodec();
+
+
     /** Turn on statistics-collecting for this transporter. */
     public void startCollectingStatistics();
 
@@ -0,0 +1,133 @@
+package pdEventTransportSubsystem;
+
+
+/**
+ * A simple histogram of long values for transporter tuning: each bucket
+ * counts values up to its upper bound, and one more bucket counts
+ * everything bigger. Also keeps the count, sum and maximum.
+ *
+ * @author BARS Team
+ */
+public class pdEventTransporterHistogram
+  {
+    /** Name of what we're measuring. */
+    protected String name = null;
+
+    /** Upper bound (inclusive) of each bucket but the last. */
+    protected long[] bucketBounds = null;
+
+    /** Count in each bucket; the last one is for values over every bound. */
+    protected long[] bucketCounts = null;
+
+    /** Number of values recorded. */
+    protected long count = 0;
+
+    /** Sum of values recorded. */
+    protected long sum = 0;
+
+    /** Biggest value recorded. */
+    protected long max = 0;
+
+
+    /** Make a new histogram with these bucket upper bounds, smallest first. */
+    public pdEventTransporterHistogram( String name, long[] bucketBounds )
+    {
+      this.name = name;
+      this.bucketBounds = bucketBounds;
+      this.bucketCounts = new long[ bucketBounds.length + 1 ];
+    }
+
+
+    /** Make a new histogram with buckets for 1, 2, 4, ... up to 2^(numBuckets - 1). */
+    public static pdEventTransporterHistogram createPowersOfTwo( String name, int numBuckets )
+    {
+      long[] bounds = new long[ numBuckets ];
+      for ( int i = 0; i < numBuckets; i++ )
+        bounds[ i ] = 1L << i;
+
+      return new pdEventTransporterHistogram( name, bounds );
+    }
+
+
+    /** Record one value. */
+    public synchronized void record( long value )
+    {
+      int bucket = 0;
+      while ( ( bucket < bucketBounds.length ) && ( value > bucketBounds[ bucket ] ) )
+        bucket++;
+
+      bucketCounts[ bucket ]++;
+      count++;
+      sum += value;
+      if ( value > max )
+        max = value;
+    }
+
+
+    /** Forget everything recorded. */
+    public synchronized void clear()
+    {
+      for ( int i = 0; i < bucketCounts.length; i++ )
+        bucketCounts[ i ] = 0;
+      count = 0;
+      sum = 0;
+      max = 0;
+    }
+
+
+    /** Number of values recorded. */
+    public synchronized long getCount()
+    {
+      return count;
+    }
+
+
+    /** Average of values recorded. */
+    public synchronized double getMean()
+    {
+      if ( count == 0 )
+        return 0;
+
+      return ( ( double ) sum ) / count;
+    }
+
+
+    /** Biggest value recorded. */
+    public synchronized long getMax()
+    {
+      return max;
+    }
+
+
+    /** Copy of the bucket counts; the last is for values over every bound. */
+    public synchronized long[] getBucketCounts()
+    {
+      long[] counts = new long[ bucketCounts.length ];
+      System.arraycopy( bucketCounts, 0, counts, 0, bucketCounts.length );
+      return counts;
+    }
+
+
+    /** Upper bounds of the buckets. */
+    public long[] getBucketBounds()
+    {
+      return bucketBounds;
+    }
+
+
+    /** Print the histogram. */
+    public synchronized String toString()
+    {
+      StringBuffer result = new StringBuffer();
+      result.append( name + ": count " + count + ", mean " + getMean() + ", max " + max + "\n" );
+      for ( int i = 0; i < bucketCounts.length; i++ )
+        {
+          if ( i < bucketBounds.length )
+            result.append( "  <= " + bucketBounds[ i ] + ": " + bucketCounts[ i ] + "\n" );
+          else
+            result.append( "   > " + bucketBounds[ i - 1 ] + ": " + bucketCounts[ i ] + "\n" );
+        }
+
+      return result.toString();
+    }
+  }
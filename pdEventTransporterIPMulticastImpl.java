@@ -16,7 +16,7 @@ import pdKernel.*;
  * @author BARS Team
  */
 public class pdEventTransporterIPMulticastImpl extends pdActiveSystemObject
-      implements pdEventTransporter, Runnable
+      implements pdEventTransporter, pdEventSender, pdRawEventDecoder, Runnable
   {
     /** IP multicast address to use */
     protected String multicastAddress = null;
@@ -30,8 +30,20 @@ public class pdEventTransporterIPMulticastImpl extends pdActiveSystemObject
     /** group to belong to */
     transient protected InetAddress group = null;
 
-    /** receiving buffer */
-    transient private byte[] buffer = new byte[ 65536 ];
+    /** Largest datagram we can receive. */
+    public static final int MAX_DATAGRAM_SIZE = 65536;
+
+    /** Keeps only the newest unreliable change per object each tick, if coalescing is on. */
+    transient protected pdEventCoalescer coalescer = null;
+
+    /** Packs sent events into shared datagrams, if batching is on. */
+    transient protected pdEventDatagramBatcher batcher = null;
+
+    /** Where our receive buffers come from. */
+    transient protected pdByteArrayPool bufferPool = pdByteArrayPool.getSharedPool();
+
+    /** Decode threads we hand received datagrams to, or null to decode them here. */
+    transient protected pdEventReceivePipeline receivePipeline = pdEventReceivePipeline.getSharedPipeline();
 
     /** The thread for this runnable object */
     transient protected Thread thisThread = null;
@@ -42,17 +54,24 @@ public class pdEventTransporterIPMulticastImpl extends pdActiveSystemObject
     /** The object that gets the events we receive. */
     transient protected pdEventAccepter eventAccepter = null;
 
-    /** Size of event history array. */
+    /** Encodes and decodes our events. */
+    transient protected pdEventCodec eventCodec = pdEventCodecCompactImpl.getDefaultCodec();
+
+    /**
+     * Limits how fast received events are handed to the event accepter.
+     * Decode workers are shared, so on the receive pipeline it never
+     * makes them wait: unreliable events over the rate are dropped.
+     */
+    transient protected pdEventRateLimiter receiveRateLimiter = pdEventRateLimiter.createFromCommandLine( "IPMulticast" );
+
+    /** Smallest number of sent event IDs to remember. */
     protected int EVENTIDHISTORYSIZE = 500;
 
     /**
-     * Rolling array of event IDs sent; if we get an event back that
+     * Event IDs sent recently; if we get an event back that
      * we've sent, ignore it!
      */
-    transient protected long[] sentEventIDs = new long[ EVENTIDHISTORYSIZE ];
-
-    /** Index in event array of the most recently sent event. */
-    transient protected int lastSentEventIndex = -1;
+    transient protected pdEchoFilter echoFilter = null;
 
     /** currently collecting statistics? */
     transient protected boolean isCollectingStats = false;
@@ -68,9 +87,7 @@ public class pdEventTransporterIPMulticastImpl extends pdActiveSystemObject
       {
         this.multicastAddress = multicastAddress;
         this.port = port;
-
-        for ( int i = 0; i < EVENTIDHISTORYSIZE; i++ )
-          sentEventIDs[ i ] = -1;
+        createEchoFilter();
       }
 
 
@@ -79,31 +96,132 @@ public class pdEventTransporterIPMulticastImpl extends pdActiveSystemObject
      */
     public void initializeRemoteCopy() throws Exception
       {
-        lastSentEventIndex = -1;
-        for ( int i = 0; i < EVENTIDHISTORYSIZE; i++ )
-          sentEventIDs[ i ] = -1;
+        createEchoFilter();
+        eventCodec = pdEventCodecCompactImpl.getDefaultCodec();
+        receiveRateLimiter = pdEventRateLimiter.createFromCommandLine( "IPMulticast" );
+        bufferPool = pdByteArrayPool.getSharedPool();
+        receivePipeline = pdEventReceivePipeline.getSharedPipeline();
+        batcher = null;
+        coalescer = null;
         group = null;
         socket = null;
         this.status = pdActiveObject.STOPPED;
       }
 
 
-    /** Check if this event was echoed back to us from IP multicast. */
-    protected boolean wasEventEchoedBack( pdBasicEvent event )
+    /**
+     * Create the echo filter. IPMulticastEchoWindow on the command line
+     * says how long to remember a sent event ID in milliseconds (default
+     * 5000); IPMulticastEchoHistoryMax caps how many IDs we remember
+     * (default 100000).
+     */
+    protected void createEchoFilter()
     {
-      long eventID = event.getEventID();
+      long echoWindow = 5000;
+      int echoHistoryMax = 100000;
+      try
+        {
+          echoWindow = Long.parseLong( CommandLine.get( "IPMulticastEchoWindow", "5000" ) );
+          echoHistoryMax = Integer.parseInt( CommandLine.get( "IPMulticastEchoHistoryMax", "100000" ) );
+        }
+      catch ( NumberFormatException e )
+        {
+          bbPrinter.bbError( "IPMulticastEchoWindow or IPMulticastEchoHistoryMax not a number! Using 5000 and 100000...\n" );
+          echoWindow = 5000;
+          echoHistoryMax = 100000;
+        }
 
-      // See if this event is one we just sent! If so, ignore it.
-      for ( int i = 0; i < EVENTIDHISTORYSIZE; i++ )
+      echoFilter = new pdEchoFilter( echoWindow, EVENTIDHISTORYSIZE, echoHistoryMax );
+    }
+
+
+    /**
+     * Create and start the batcher if IPMulticastBatching is true on the
+     * command line. IPMulticastBatchMaxBytes is the datagram size budget
+     * (default 1400, under a typical MTU) and IPMulticastBatchFlushMillis
+     * the longest an event may wait for company (default 10).
+     */
+    protected void createBatcher()
+    {
+      if ( !CommandLine.get( "IPMulticastBatching", "false" ).equalsIgnoreCase( "true" ) )
+        return ;
+
+      int maxBytes = 1400;
+      long flushMillis = 10;
+      try
         {
-          if ( sentEventIDs[ i ] == eventID )
-            {
-              //bbPrinter.bbDebug("Event was echoed back...\n");
-              return true;
-            }
+          maxBytes = Integer.parseInt( CommandLine.get( "IPMulticastBatchMaxBytes", "1400" ) );
+          flushMillis = Long.parseLong( CommandLine.get( "IPMulticastBatchFlushMillis", "10" ) );
+        }
+      catch ( NumberFormatException e )
+        {
+          bbPrinter.bbError( "IPMulticastBatchMaxBytes or IPMulticastBatchFlushMillis not a number! Using 1400 and 10...\n" );
+          maxBytes = 1400;
+          flushMillis = 10;
         }
 
-      return false;
+      batcher = new pdEventDatagramBatcher( this, maxBytes, flushMillis );
+      batcher.start();
+    }
+
+
+    /**
+     * Create and start the coalescer if IPMulticastCoalesceMillis on the
+     * command line is more than zero (the default is zero, meaning off).
+     * It is the length of a coalescing tick in milliseconds.
+     */
+    protected void createCoalescer()
+    {
+      long coalesceMillis = 0;
+      try
+        {
+          coalesceMillis = Long.parseLong( CommandLine.get( "IPMulticastCoalesceMillis", "0" ) );
+        }
+      catch ( NumberFormatException e )
+        {
+          bbPrinter.bbError( "IPMulticastCoalesceMillis not a number! Not coalescing...\n" );
+          coalesceMillis = 0;
+        }
+
+      if ( coalesceMillis <= 0 )
+        return ;
+
+      coalescer = new pdEventCoalescer( this, coalesceMillis );
+      coalescer.start();
+    }
+
+
+    /**
+     * Send any unreliable changes being held for this object now. Call
+     * this before sending a reliable event for the object some other way.
+     */
+    public void flushCoalescedEvents( long targetID )
+    {
+      pdEventCoalescer currentCoalescer = coalescer;
+      if ( currentCoalescer != null )
+        currentCoalescer.flushTarget( targetID );
+    }
+
+
+    /** Get the coalescer, or null if coalescing is off. */
+    public pdEventCoalescer getCoalescer()
+    {
+      return coalescer;
+    }
+
+
+    /** Get the batcher, or null if batching is off. */
+    public pdEventDatagramBatcher getBatcher()
+    {
+      return batcher;
+    }
+
+
+    /** Check if this event was echoed back to us from IP multicast. */
+    protected boolean wasEventEchoedBack( pdBasicEvent event )
+    {
+      // See if this event is one we just sent! If so, ignore it.
+      return echoFilter.wasSent( event.getEventID() );
     }
 
 
@@ -130,7 +248,6 @@ public class pdEventTransporterIPMulticastImpl extends pdActiveSystemObject
               group = InetAddress.getByName( multicastAddress );
               socket = new MulticastSocket( port );
               //socket.setTTL((new Byte("99")).byteValue());
-              socket.setSoTimeout( 20 );              
               socket.joinGroup( group );
             }
           catch ( Exception e )
@@ -140,35 +257,71 @@ public class pdEventTransporterIPMulticastImpl extends pdActiveSystemObject
             }
         }
 
+      createBatcher();
+      createCoalescer();
+
+      threadStarted = true;
       thisThread = new Thread( this );
       thisThread.start();
-      threadStarted = true;
       return true;
     }
 
 
-    /** Stop this thread. */
+    /**
+     * Stop this thread. Closing the socket wakes up its blocked receive;
+     * then we wait for it to finish so its receive buffer goes back to
+     * the pool.
+     */
     protected boolean _stop()
     {
-      thisThread.stop();
       threadStarted = false;
 
+      if ( coalescer != null )
+        {
+          coalescer.stop();
+          coalescer = null;
+        }
+
+      if ( batcher != null )
+        {
+          batcher.stop();
+          batcher = null;
+        }
+
+      boolean result = true;
       if ( socket != null )
         {
           try
             {
-              // Shut down socket
               socket.leaveGroup( group );
             }
           catch ( Exception e )
             {
-              bbPrinter.bbError( "pdEventTransporterIPMulticastImpl: could not stop: " + e.getMessage() + "\n" );
-              return false;
+              bbPrinter.bbError( "pdEventTransporterIPMulticastImpl: could not leave group: " + e.getMessage() + "\n" );
+              result = false;
             }
+
+          // Closing the socket wakes up a blocked receive.
+          socket.close();
           socket = null;
         }
 
-      return true;
+      if ( ( thisThread != null ) && ( thisThread != Thread.currentThread() ) )
+        {
+          try
+            {
+              thisThread.join( 5000 );
+            }
+          catch ( InterruptedException e )
+            {
+              bbPrinter.bbDebug( "pdEventTransporterIPMulticastImpl: interrupted waiting for receive thread\n" );
+            }
+          if ( thisThread.isAlive() )
+            bbPrinter.bbWarn( "pdEventTransporterIPMulticastImpl: receive thread didn't stop\n" );
+        }
+      thisThread = null;
+
+      return result;
     }
 
     /** Suspend this thread. */
@@ -192,69 +345,129 @@ public class pdEventTransporterIPMulticastImpl extends pdActiveSystemObject
     ///////////////////////////////////////
 
     /**
-     * The main thread: try to receive an event from the socket. If it's
-     * a valid event, send it to the event-accepting object.
+     * The main thread: wait for a datagram on the socket and hand its
+     * events to the event-accepting object right away, subject only to
+     * the receive rate limiter. One pooled buffer and one datagram
+     * packet are reused for every datagram, and only the bytes actually
+     * received are decoded.
      */
     public void run()
     {
-      pdBasicEvent event = null;
+      byte[] receiveBuffer = bufferPool.getBuffer( MAX_DATAGRAM_SIZE );
+      DatagramPacket eventDatagram = new DatagramPacket( receiveBuffer, receiveBuffer.length );
 
-      while ( true )
+      while ( threadStarted )
         {
-          event = null;
-
           try
             {
-              DatagramPacket eventDatagram = new DatagramPacket( buffer, buffer.length );
+              MulticastSocket receiveSocket = socket;
+              if ( receiveSocket == null )
+                break;
+
+              eventDatagram.setLength( receiveBuffer.length );
               bbPrinter.bbDebug( "Transporter trying to receive event... \n" );
-              socket.receive( eventDatagram );
+              receiveSocket.receive( eventDatagram );
               bbPrinter.bbDebug( "Transporter received event maybe \n" );
-              byte[] eventBuffer = eventDatagram.getData();
-              ByteArrayInputStream inByteStream = new ByteArrayInputStream( eventBuffer );
-              ObjectInputStream inObjectStream = new ObjectInputStream( inByteStream );
-              event = ( pdBasicEvent ) inObjectStream.readObject();
-              inObjectStream.close();
-            }
-          catch ( java.net.SocketTimeoutException jns )
-            {
-              // do nothing
             }
           catch ( Exception e )
             {
-              e.printStackTrace();
+              // A closed socket just means we're being stopped.
+              if ( threadStarted )
+                e.printStackTrace();
+              continue;
             }
-      
-          if ( event == null )
-            continue; 
- 
-          if ( wasEventEchoedBack( event ) )
-            continue;
-
-          bbPrinter.bbDebug( "Transporter received event of type " + event.getClass().getName() + "\n" );
 
-          bbPrinter.bbDebug( "IPMulticast: event not from me!\n" );
+          if ( receivePipeline == null )
+            {
+              decodeDatagram( eventDatagram.getData(), eventDatagram.getOffset(), eventDatagram.getLength() );
+              continue;
+            }
 
-          bbPrinter.bbDebug( "IPMulticast: eventAccepter is " + ( ( pdSystemObject ) eventAccepter ).getName() + "\n" );
+          // Copy the datagram out so the receive buffer can be reused.
+          byte[] datagramCopy = bufferPool.getBuffer( eventDatagram.getLength() );
+          System.arraycopy( eventDatagram.getData(), eventDatagram.getOffset(), datagramCopy, 0, eventDatagram.getLength() );
+          receivePipeline.submit( eventDatagram.getAddress(), this, datagramCopy, 0, eventDatagram.getLength() );
+        }
 
+      bufferPool.returnBuffer( receiveBuffer );
+    }
 
-          if ( eventAccepter != null )
-            eventAccepter.acceptEvent( event );
 
+    /** Decode a datagram for the receive pipeline. */
+    public void decodeRawEvent( Object sender, byte[] buffer, int offset, int length )
+    {
+      decodeDatagram( buffer, offset, length );
+    }
 
-          if ( isCollectingStats )
-            eventStats.countEventReceived( event );
 
+    /**
+     * Decode a received datagram, either one event or a batch of them,
+     * and deliver its events in the order they were sent.
+     */
+    protected void decodeDatagram( byte[] data, int offset, int length )
+    {
+      if ( ( length <= 0 ) || ( ( data[ offset ] & 0xFF ) != pdEventDatagramBatcher.BATCH_TAG ) )
+        {
+          deliverEvent( decodeEvent( data, offset, length ) );
+          return ;
+        }
 
-          // Sleep now or else this thread will dominate and slow everything down A LOT.
-          try
-            {
-              Thread.sleep( 20 );
-            }
-          catch ( Exception e )
+      int position = offset + 1;
+      int end = offset + length;
+      while ( ( position + pdEventDatagramBatcher.EVENT_HEADER_SIZE ) <= end )
+        {
+          int eventLength = ( ( data[ position ] & 0xFF ) << 8 ) | ( data[ position + 1 ] & 0xFF );
+          position += pdEventDatagramBatcher.EVENT_HEADER_SIZE;
+          if ( ( position + eventLength ) > end )
             {
-              e.printStackTrace();
+              bbPrinter.bbError( "pdEventTransporterIPMulticastImpl: truncated event batch\n" );
+              return ;
             }
+
+          deliverEvent( decodeEvent( data, position, eventLength ) );
+          position += eventLength;
+        }
+    }
+
+
+    /** Decode one event; returns null if it can't be decoded. */
+    protected pdBasicEvent decodeEvent( byte[] data, int offset, int length )
+    {
+      try
+        {
+          return eventCodec.decodeEvent( data, offset, length );
         }
+      catch ( Exception e )
+        {
+          e.printStackTrace();
+          return null;
+        }
+    }
+
+
+    /** Send a received event to the event-accepting object, unless it's our own. */
+    protected void deliverEvent( pdBasicEvent event )
+    {
+      if ( event == null )
+        return ; 
+ 
+      if ( wasEventEchoedBack( event ) )
+        return ;
+
+      bbPrinter.bbDebug( "Transporter received event of type " + event.getClass().getName() + "\n" );
+
+      bbPrinter.bbDebug( "IPMulticast: event not from me!\n" );
+
+      // Waiting on a shared decode worker would hold up other senders too.
+      if ( !receiveRateLimiter.admit( event, ( receivePipeline == null ) ) )
+        return ;
+
+      if ( eventAccepter != null )
+        eventAccepter.acceptEvent( event );
+
+
+      if ( isCollectingStats )
+        eventStats.countEventReceived( event );
     }
 
     /////////////////////////////////////////////////
@@ -277,6 +490,20 @@ public class pdEventTransporterIPMulticastImpl extends pdActiveSystemObject
     }
 
 
+    /** Get the limiter that paces received events. */
+    public pdEventRateLimiter getReceiveRateLimiter()
+    {
+      return receiveRateLimiter;
+    }
+
+
+    /** Set the limiter that paces received events. */
+    public void setReceiveRateLimiter( pdEventRateLimiter receiveRateLimiter )
+    {
+      this.receiveRateLimiter = receiveRateLimiter;
+    }
+
+
     /** Get the IP address this transporter is using. */
     public String getAddress()
     {
@@ -302,23 +529,66 @@ public class pdEventTransporterIPMulticastImpl extends pdActiveSystemObject
       if ( socket == null )
         return ;
 
+      // Hold unreliable object changes for the next coalescing tick. Anything
+      // else goes now, after whatever is held for the same object.
+      pdEventCoalescer currentCoalescer = coalescer;
+      if ( currentCoalescer != null )
+        {
+          if ( currentCoalescer.offer( event ) )
+            return ;
+          currentCoalescer.flushTarget( event.getTargetID() );
+        }
+
+      sendEventNow( event );
+    }
+
+
+    /** Put an event on the wire now, skipping coalescing. */
+    public void sendEventNow( pdBasicEvent event )
+    {
+      // Ignore this event if this object has been stopped.
+      if ( socket == null )
+        return ;
+
       bbPrinter.bbDebug( "IPMulticast Transporter sending " + event.getClass().getName() + ": " + event.toString() + "\n" );
 
 
-      // Add the event's ID to the array of recently-sent IDs.
-      lastSentEventIndex = ( lastSentEventIndex + 1 ) % EVENTIDHISTORYSIZE;
-      sentEventIDs[ lastSentEventIndex ] = event.getEventID();
+      // Add the event's ID to the recently-sent IDs.
+      echoFilter.recordSent( event.getEventID() );
 
       try
         {
           ByteArrayOutputStream outByteStream = new ByteArrayOutputStream();
-          ObjectOutputStream outObjectStream = new ObjectOutputStream( outByteStream );
-          outObjectStream.writeObject( event );
-          outObjectStream.flush();
-          outObjectStream.close();
+          eventCodec.encodeEvent( event, outByteStream );
           byte[] buffer = outByteStream.toByteArray();
-          DatagramPacket eventDatagram = new DatagramPacket( buffer, buffer.length, group, port );
-          socket.send( eventDatagram );
+
+          pdEventDatagramBatcher currentBatcher = batcher;
+          if ( currentBatcher != null )
+            currentBatcher.addEvent( buffer, 0, buffer.length );
+          else
+            sendDatagram( buffer, 0, buffer.length );
+        }
+      catch ( Exception e )
+        {
+          e.printStackTrace();
+        }
+
+      if ( isCollectingStats )
+        eventStats.countEventSent( event );
+    }
+
+
+    /** Send length bytes of the buffer, starting at offset, as one datagram. */
+    protected void sendDatagram( byte[] buffer, int offset, int length )
+    {
+      MulticastSocket sendSocket = socket;
+      if ( sendSocket == null )
+        return ;
+
+      try
+        {
+          DatagramPacket eventDatagram = new DatagramPacket( buffer, offset, length, group, port );
+          sendSocket.send( eventDatagram );
         }
       catch ( java.net.NoRouteToHostException e1 )
         {
@@ -329,9 +599,20 @@ public class pdEventTransporterIPMulticastImpl extends pdActiveSystemObject
         {
           e.printStackTrace();
         }
+    }
 
-      if ( isCollectingStats )
-        eventStats.countEventSent( event );
+
+    /** Set the codec used to encode and decode events. */
+    public void setEventCodec( pdEventCodec eventCodec )
+    {
+      this.eventCodec = eventCodec;
+    }
+
+
+    /** Get the codec used to encode and decode events. */
+    public pdEventCodec getEventCodec()
+    {
+      return eventCodec;
     }
 
 
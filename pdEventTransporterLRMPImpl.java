@@ -23,7 +23,7 @@ import pdKernel.*;
  * @author BARS Team
  */
 public class pdEventTransporterLRMPImpl extends pdActiveSystemObject
-      implements pdEventTransporter, LrmpEventHandler
+      implements pdEventTransporter, pdRawEventDecoder, LrmpEventHandler
   {
     /** Multicast address to use */
     protected String multicastAddress = null;
@@ -37,23 +37,150 @@ public class pdEventTransporterLRMPImpl extends pdActiveSystemObject
     /** Has LRMP been started? */
     transient protected boolean lrmpStarted = false;
 
-    /** Size of a packet of data, hard-coded for your inconvenience */
-    int PACKET_DATA_LENGTH = 1024;
+    /**
+     * Version byte that starts every packet we send. Older transporters
+     * put the part number there, and only ever managed 1 to 127, so
+     * their packets can't be mistaken for ours or ours for theirs.
+     */
+    public static final byte FRAGMENT_HEADER_VERSION = ( byte ) 0xFE;
+
+    /** Bytes of header on each packet: version, message ID, offset, total length. */
+    public static final int FRAGMENT_HEADER_SIZE = 13;
+
+    /**
+     * First byte of a control packet, in place of the version byte.
+     * Control packets are heartbeats and their acknowledgements.
+     */
+    public static final byte CONTROL_HEADER = ( byte ) 0xFD;
+
+    /**
+     * Bytes in a control packet: header, type, node ID, sequence number,
+     * send time and responder ID.
+     */
+    public static final int CONTROL_PACKET_SIZE = 30;
+
+    /**
+     * Control packet type: a heartbeat, to be acknowledged by the one
+     * node it names as responder.
+     */
+    public static final byte HEARTBEAT = 1;
+
+    /** Responder ID of a heartbeat any node may acknowledge: sent until we've heard from a peer. */
+    public static final long ANY_RESPONDER = 0;
+
+    /** Control packet type: acknowledgement of a heartbeat. */
+    public static final byte HEARTBEAT_ACK = 2;
+
+    /** Bytes of IP and UDP header on each datagram. */
+    public static final int IP_UDP_HEADER_SIZE = 28;
+
+    /** Bytes we leave for LRMP's own header on each datagram. */
+    public static final int LRMP_HEADER_SIZE = 32;
+
+    /** Largest datagram we'll have LRMP send; set by LRMPMaxTransmissionUnit. */
+    transient protected int maxTransmissionUnit = 1500;
+
+    /** The maximum size of an encoded event; set by LRMPMaxEventSize. */
+    transient protected int maxEventSize = 4194304;
+
+    /** ID of the next event we send. */
+    transient protected int nextMessageID = 0;
+
+    /** Number of packets thrown away for having a header version we don't know. */
+    transient protected long unknownVersionPackets = 0;
+
+    /** Random ID telling our heartbeats' acknowledgements from others'. */
+    transient protected long nodeID = new Random().nextLong();
+
+    /** Sequence number of the next heartbeat. */
+    transient protected int nextHeartbeat = 0;
+
+    /** When we last heard a heartbeat from each other node, by node ID. */
+    transient protected pdLongHashMap heartbeatPeers = new pdLongHashMap();
+
+    /** When we last got any packet from LRMP, in milliseconds. */
+    transient protected long lastReceiveTime = System.currentTimeMillis();
+
+    /** When we last got an acknowledgement of one of our heartbeats, in milliseconds. */
+    transient protected long lastAckTime = System.currentTimeMillis();
+
+    /** Heartbeat round-trip times through LRMP, while collecting statistics. */
+    transient protected pdEventTransporterHistogram roundTripTimes =
+      pdEventTransporterHistogram.createPowersOfTwo( "LRMP round trip (ms)", 14 );
+
+    /**
+     * Guards lrmp, restarting, pendingSends and the retained events.
+     * Events are sent holding it, so none goes to an instance being
+     * thrown away.
+     */
+    transient protected Object restartLock = new Object();
+
+    /** Is LRMP being restarted? Events sent meanwhile wait in pendingSends. */
+    transient protected boolean restarting = false;
+
+    /** Events sent while LRMP was being restarted. */
+    transient protected Vector pendingSends = new Vector();
+
+    /**
+     * Events handed to LRMP since the last heartbeat another node has
+     * acknowledged, oldest first, to be sent again if LRMP is restarted.
+     */
+    transient protected Vector retainedEvents = new Vector();
+
+    /** The heartbeat sent after each retained event, as Integer sequence numbers. */
+    transient protected Vector retainedBefore = new Vector();
+
+    /** Most events to retain; set by LRMPRetainedEvents. */
+    transient protected int maxRetained = 4096;
+
+    /** Number of retained events let go unacknowledged because there were too many. */
+    transient protected long retainedDropped = 0;
+
+    /** Number of times LRMP has been restarted in place. */
+    transient protected long restartCount = 0;
+
+    /** Decode threads we hand received events to, or null to decode them here. */
+    transient protected pdEventReceivePipeline receivePipeline = pdEventReceivePipeline.getSharedPipeline();
+
+    /** A pdLRMPFragmentOutputStream for each sending thread. */
+    transient protected ThreadLocal fragmentStreams = new ThreadLocal();
 
-    /** The maximum size we expect of a serialized event, also hard-coded for your inconvenience */
-    int MAX_EVENT_SIZE = 65536;
+    /** Number of events broken into packets. */
+    transient protected long eventsFragmented = 0;
+
+    /** Number of packets made for sending. */
+    transient protected long packetsAllocated = 0;
+
+    /** Number of event bytes copied into packets from the encoder's buffers. */
+    transient protected long bytesCopied = 0;
+
+    /** Number of events received whole or reassembled. */
+    transient protected long eventsReceived = 0;
+
+    /** Number of event bytes copied out of whole-event packets for the receive pipeline. */
+    transient protected long receiveBytesCopied = 0;
 
     /** The event accepter. */
     transient protected pdEventAccepter eventAccepter = null;
 
+    /** Encodes and decodes our events. */
+    transient protected pdEventCodec eventCodec = pdEventCodecCompactImpl.getDefaultCodec();
+
     /** profile info for LRMP */
     transient protected LrmpProfile profile = null;
 
+    /** Multicast time-to-live; set by LRMPTTL. */
+    transient protected int ttl = 20;
+
+    /** Adjusts the profile's rate as we go, or null if LRMPTuneInterval is 0. */
+    transient protected pdLRMPProfileTuner profileTuner = null;
+
     /**
-     * A table of partially-received events, which we collect until
-     * the whole event is received and can be un-serialized and used. 
+     * Puts multi-packet events back together, so the parts of several
+     * events can be in progress at once without holding a full-size
+     * buffer per sender.
      */
-    transient protected Hashtable senderToPartialEventTable = new Hashtable();
+    transient protected pdFragmentAssembler fragmentAssembler = null;
 
     /** currently collecting statistics? */
     transient protected boolean isCollectingStats = false;
@@ -70,6 +197,8 @@ public class pdEventTransporterLRMPImpl extends pdActiveSystemObject
         this.multicastAddress = multicastAddress;
         this.port = port;
         createLRMPProfile();
+        createFragmentAssembler();
+        createRetainedEvents();
       }
 
 
@@ -80,17 +209,75 @@ public class pdEventTransporterLRMPImpl extends pdActiveSystemObject
       {
         this.status = pdActiveObject.STOPPED;
         lrmpStarted = false;
-        senderToPartialEventTable = new Hashtable();
+        nextMessageID = 0;
+        unknownVersionPackets = 0;
+        fragmentStreams = new ThreadLocal();
+        receivePipeline = pdEventReceivePipeline.getSharedPipeline();
+        nodeID = new Random().nextLong();
+        nextHeartbeat = 0;
+        heartbeatPeers = new pdLongHashMap();
+        lastReceiveTime = System.currentTimeMillis();
+        lastAckTime = lastReceiveTime;
+        roundTripTimes = pdEventTransporterHistogram.createPowersOfTwo( "LRMP round trip (ms)", 14 );
+        restartLock = new Object();
+        restarting = false;
+        pendingSends = new Vector();
+        restartCount = 0;
+        createRetainedEvents();
+        eventsFragmented = 0;
+        packetsAllocated = 0;
+        bytesCopied = 0;
+        eventsReceived = 0;
+        receiveBytesCopied = 0;
+        createFragmentAssembler();
+        eventCodec = pdEventCodecCompactImpl.getDefaultCodec();
         createLRMPProfile();
         lrmp = null;
       }
 
 
-    /** Create LRMP profile info */
+    /**
+     * Create LRMP profile info. LRMPMinRate and LRMPMaxRate on the command
+     * line give the data rate in kbits/sec (default 8 and 64), LRMPWindowSize
+     * the buffer space in kilobytes (default 1024) and LRMPTTL the multicast
+     * time-to-live (default 20).
+     * <P>
+     * If LRMPTuneInterval is more than 0 (default 0), a pdLRMPProfileTuner
+     * adjusts the rate every that many milliseconds, between LRMPMinRate and
+     * LRMPRateCeiling (default 1024) in steps of LRMPRateStep (default 16),
+     * timing a heartbeat each tick to see how our sends are doing,
+     * and the flow control is switched to AdaptedThroughput so the rate
+     * is used.
+     */
     private void createLRMPProfile()
     {
-      // the LRMP configuration is set through profile. All config parameters
-      // given here are the default values.
+      int minRate = 8;
+      int maxRate = 64;
+      int windowSize = 1024;
+      long tuneInterval = 0;
+      int rateCeiling = 1024;
+      int rateStep = 16;
+      try
+        {
+          minRate = Integer.parseInt( CommandLine.get( "LRMPMinRate", "8" ) );
+          maxRate = Integer.parseInt( CommandLine.get( "LRMPMaxRate", "64" ) );
+          windowSize = Integer.parseInt( CommandLine.get( "LRMPWindowSize", "1024" ) );
+          ttl = Integer.parseInt( CommandLine.get( "LRMPTTL", "20" ) );
+          tuneInterval = Long.parseLong( CommandLine.get( "LRMPTuneInterval", "0" ) );
+          rateCeiling = Integer.parseInt( CommandLine.get( "LRMPRateCeiling", "1024" ) );
+          rateStep = Integer.parseInt( CommandLine.get( "LRMPRateStep", "16" ) );
+        }
+      catch ( NumberFormatException e )
+        {
+          bbPrinter.bbError( "LRMP profile option not a number! Using rates 8-64, window 1024, TTL 20, no tuning...\n" );
+          minRate = 8;
+          maxRate = 64;
+          windowSize = 1024;
+          ttl = 20;
+          tuneInterval = 0;
+        }
+
+      // the LRMP configuration is set through profile.
       profile = new LrmpProfile();
 
       // set the handler for processing the received packets and events
@@ -103,18 +290,123 @@ public class pdEventTransporterLRMPImpl extends pdActiveSystemObject
       profile.ordered = true;
 
       // the flow control
-      profile.throughput = LrmpProfile.BestEffort;
+      profile.throughput = ( tuneInterval > 0 ) ? LrmpProfile.AdaptedThroughput : LrmpProfile.BestEffort;
 
       // the data rate in kbits/sec if the throughput is set to AdaptedThroughput
-      profile.minRate = 8;
-      profile.maxRate = 64;
+      profile.minRate = minRate;
+      profile.maxRate = maxRate;
 
       // the buffer space in kilo bytes
-      profile.sendWindowSize = 1024;
-      profile.rcvWindowSize = 1024;
+      profile.sendWindowSize = windowSize;
+      profile.rcvWindowSize = windowSize;
       
       // the receiver report mechanism
       profile.rcvReportSelection = LrmpProfile.RandomReceiverReport;
+
+      profileTuner = null;
+      if ( tuneInterval > 0 )
+        profileTuner = new pdLRMPProfileTuner( this, profile, tuneInterval, minRate, rateCeiling, rateStep, 16, windowSize );
+    }
+
+
+    /**
+     * Create the fragment assembler. LRMPMaxEventSize on the command line
+     * is the largest encoded event we'll send or put back together
+     * (default 4194304), and LRMPMaxTransmissionUnit the largest datagram
+     * to send (default 1500). LRMPReassemblyTimeout says how long a
+     * partly-received event may go without a new part before it's thrown
+     * away, in milliseconds (default 30000); LRMPReassemblyBudget caps
+     * the bytes held by partly-received events (default 16777216).
+     */
+    protected void createFragmentAssembler()
+    {
+      long timeout = 30000;
+      long budget = 16777216;
+      try
+        {
+          maxEventSize = Integer.parseInt( CommandLine.get( "LRMPMaxEventSize", "4194304" ) );
+          maxTransmissionUnit = Integer.parseInt( CommandLine.get( "LRMPMaxTransmissionUnit", "1500" ) );
+          timeout = Long.parseLong( CommandLine.get( "LRMPReassemblyTimeout", "30000" ) );
+          budget = Long.parseLong( CommandLine.get( "LRMPReassemblyBudget", "16777216" ) );
+        }
+      catch ( NumberFormatException e )
+        {
+          bbPrinter.bbError( "LRMPMaxEventSize, LRMPMaxTransmissionUnit, LRMPReassemblyTimeout or LRMPReassemblyBudget not a number! Using 4194304, 1500, 30000 and 16777216...\n" );
+          maxEventSize = 4194304;
+          maxTransmissionUnit = 1500;
+          timeout = 30000;
+          budget = 16777216;
+        }
+
+      fragmentAssembler = new pdFragmentAssembler( pdByteArrayPool.getSharedPool(), timeout, budget, maxEventSize );
+    }
+
+
+    /**
+     * Set up the events kept for a restart. LRMPRetainedEvents on the
+     * command line is the most to keep waiting for an acknowledgement
+     * (default 4096); older ones are let go past that.
+     */
+    protected void createRetainedEvents()
+    {
+      retainedEvents = new Vector();
+      retainedBefore = new Vector();
+      retainedDropped = 0;
+      try
+        {
+          maxRetained = Integer.parseInt( CommandLine.get( "LRMPRetainedEvents", "4096" ) );
+        }
+      catch ( NumberFormatException e )
+        {
+          bbPrinter.bbError( "LRMPRetainedEvents not a number! Using 4096...\n" );
+          maxRetained = 4096;
+        }
+    }
+
+
+    /**
+     * How many bytes of event fit in one packet: whatever's left of the
+     * MTU after the IP, UDP, LRMP and fragment headers, but no more than
+     * the packet's own buffer holds.
+     */
+    protected int getFragmentDataLength( LrmpPacket pack )
+    {
+      int fromMTU = maxTransmissionUnit - IP_UDP_HEADER_SIZE - LRMP_HEADER_SIZE - FRAGMENT_HEADER_SIZE;
+      int fromBuffer = pack.getDataBuffer().length - pack.getOffset() - FRAGMENT_HEADER_SIZE;
+      return Math.max( 1, Math.min( fromMTU, fromBuffer ) );
+    }
+
+
+    /** Write an int into a buffer, high byte first. */
+    protected static void writeInt( byte[] buffer, int offset, int value )
+    {
+      buffer[ offset ] = ( byte ) ( value >>> 24 );
+      buffer[ offset + 1 ] = ( byte ) ( value >>> 16 );
+      buffer[ offset + 2 ] = ( byte ) ( value >>> 8 );
+      buffer[ offset + 3 ] = ( byte ) value;
+    }
+
+
+    /** Write a long into a buffer, high byte first. */
+    protected static void writeLong( byte[] buffer, int offset, long value )
+    {
+      writeInt( buffer, offset, ( int ) ( value >>> 32 ) );
+      writeInt( buffer, offset + 4, ( int ) value );
+    }
+
+
+    /** Read a long from a buffer, high byte first. */
+    protected static long readLong( byte[] buffer, int offset )
+    {
+      return ( ( ( long ) readInt( buffer, offset ) ) << 32 ) | ( readInt( buffer, offset + 4 ) & 0xFFFFFFFFL );
+    }
+
+
+    /** Read an int from a buffer, high byte first. */
+    protected static int readInt( byte[] buffer, int offset )
+    {
+      return ( ( buffer[ offset ] & 0xFF ) << 24 ) | ( ( buffer[ offset + 1 ] & 0xFF ) << 16 ) |
+             ( ( buffer[ offset + 2 ] & 0xFF ) << 8 ) | ( buffer[ offset + 3 ] & 0xFF );
     }
 
 
@@ -139,8 +431,7 @@ public class pdEventTransporterLRMPImpl extends pdActiveSystemObject
         {
           try
             {
-              // Uses fixed TTL--change?
-              lrmp = new Lrmp( multicastAddress, port, 20, profile );
+              lrmp = new Lrmp( multicastAddress, port, ttl, profile );
               bbPrinter.bbDebug( "LRMP started on " + multicastAddress + ":" + port + "\n" );
             }
           catch ( Exception e )
@@ -151,8 +442,16 @@ public class pdEventTransporterLRMPImpl extends pdActiveSystemObject
         }
 
       // start the LRMP object. From this time, packets will be received
-      lrmp.start();
-      lrmpStarted = true;
+      synchronized ( restartLock )
+        {
+          lrmp.start();
+          lrmpStarted = true;
+        }
+      lastReceiveTime = System.currentTimeMillis();
+      lastAckTime = lastReceiveTime;
+
+      if ( profileTuner != null )
+        profileTuner.start();
       return true;
     }
 
@@ -160,11 +459,22 @@ public class pdEventTransporterLRMPImpl extends pdActiveSystemObject
     /** Stop LRMP. */
     protected boolean _stop()
     {
+      if ( profileTuner != null )
+        profileTuner.stop();
+
       // Shut down lrmp
-      if ( lrmpStarted )
-        lrmp.stop();
-      lrmpStarted = false;
-      lrmp = null;
+      Lrmp oldLrmp;
+      synchronized ( restartLock )
+        {
+          oldLrmp = lrmpStarted ? lrmp : null;
+          lrmpStarted = false;
+          lrmp = null;
+          retainedEvents.removeAllElements();
+          retainedBefore.removeAllElements();
+        }
+      if ( oldLrmp != null )
+        oldLrmp.stop();
+      fragmentAssembler.clear();
 
       return true;
     }
@@ -193,10 +503,12 @@ public class pdEventTransporterLRMPImpl extends pdActiveSystemObject
     /**
      * This method is defined in LrmpEventHandler. Every time an in-sequence
      * data packet is received, this method is called.
-     * It checks to see that this packet represents an event or part of
-     * an event. If it's part of an event, that part is stored away. If
-     * it's a whole event OR the LAST part of a multi-packet event, the event is
-     * un-serialized into an event object and sent to the event accepter.
+     * Each packet holds a fragment of an event: a header giving the
+     * event's message ID, where the fragment goes in the event and the
+     * event's total length, then the fragment itself. A fragment that is
+     * the whole event is decoded straight out of the packet; others go
+     * to the fragment assembler, and the event is decoded and sent to the
+     * event accepter when its last missing fragment arrives.
      */
     public void processData( LrmpPacket pack )
     {
@@ -207,107 +519,156 @@ public class pdEventTransporterLRMPImpl extends pdActiveSystemObject
         }
 
       pdBasicEvent event = null;
-
-      // Get the part number of this part of an event and the sender.
-      int partNumber = ( new Byte( ( pack.getDataBuffer() ) [ pack.getOffset() ] ).intValue() );
-      int numParts = ( new Byte( ( pack.getDataBuffer() ) [ ( pack.getOffset() + 1 ) ] ).intValue() );
+      byte[] data = pack.getDataBuffer();
+      int offset = pack.getOffset();
       LrmpEntity sender = pack.getSource();
-      bbPrinter.bbDebug( "pdEventTransporterLRMPImpl:Got event part " + partNumber + "/" + numParts + " of size " + ( pack.getDataLength() - 2 ) );
+      lastReceiveTime = System.currentTimeMillis();
 
-      // If this is a one-part event just parse it into an event.
-      if ( ( partNumber == numParts ) && ( numParts == 1 ) )
+      if ( ( pack.getDataLength() == CONTROL_PACKET_SIZE ) && ( data[ offset ] == CONTROL_HEADER ) )
         {
-          try
-            {
-              ByteArrayInputStream inByteStream = new ByteArrayInputStream( pack.getDataBuffer(), pack.getOffset() + 2, pack.getDataLength() - 2 );
-              ObjectInputStream inObjectStream = new ObjectInputStream( inByteStream );
-              event = ( pdBasicEvent ) inObjectStream.readObject();
-              inObjectStream.close();
-            }
-          catch ( Exception e )
-            {
-              e.printStackTrace();
-            }
+          processControlPacket( data, offset );
+          return ;
         }
 
-      // Otherwise, this part is one of many...
-      else
+      if ( ( pack.getDataLength() < FRAGMENT_HEADER_SIZE ) || ( data[ offset ] != FRAGMENT_HEADER_VERSION ) )
+        {
+          unknownVersionPackets++;
+          bbPrinter.bbDebug( "pdEventTransporterLRMPImpl:Dropping packet from " + sender + " with unknown header version " + data[ offset ] + "\n" );
+          return ;
+        }
+
+      int messageID = readInt( data, offset + 1 );
+      int fragmentOffset = readInt( data, offset + 5 );
+      int totalLength = readInt( data, offset + 9 );
+      int fragmentLength = pack.getDataLength() - FRAGMENT_HEADER_SIZE;
+      bbPrinter.bbDebug( "pdEventTransporterLRMPImpl:Got bytes " + fragmentOffset + "-" + ( fragmentOffset + fragmentLength ) + " of " + totalLength + " of event " + messageID );
+
+      // If this fragment is the whole event just parse it into an event,
+      // or have the receive pipeline do it; the packet is LRMP's, so the
+      // pipeline gets a copy.
+      if ( ( fragmentOffset == 0 ) && ( fragmentLength == totalLength ) )
         {
-          // If it's the last part, construct the event.
-          if ( partNumber == numParts )
+          synchronized ( this )
             {
-              if ( senderToPartialEventTable.containsKey( sender ) )
-                {
-                  byte[] buffer = ( byte[] ) ( senderToPartialEventTable.get( sender ) );
-                  System.arraycopy( pack.getDataBuffer(), pack.getOffset() + 2,
-                                    buffer, ( ( partNumber - 1 ) * PACKET_DATA_LENGTH ),
-                                    ( pack.getDataLength() - 2 ) );
-
-                  try
-                    {
-                      ByteArrayInputStream inByteStream = new ByteArrayInputStream( buffer );
-                      ObjectInputStream inObjectStream = new ObjectInputStream( inByteStream );
-                      event = ( pdBasicEvent ) inObjectStream.readObject();
-                      inObjectStream.close();
-                    }
-                  catch ( Exception e )
-                    {
-                      e.printStackTrace();
-                    }
-
-                  senderToPartialEventTable.remove( sender );
-                }
-              else
-                {
-                  bbPrinter.bbDebug( "pdEventTransporterLRMPImpl:LRMP ERROR: Got event part " + partNumber + "/" + numParts + " from sender " + sender + " but missing other parts!!!\n" );
-                }
+              eventsReceived++;
             }
 
-          // If it's the first part, create the table entry.
-          else if ( partNumber == 1 )
+          if ( receivePipeline != null )
             {
-              if ( !( senderToPartialEventTable.containsKey( sender ) ) )
+              pdByteArrayPool bufferPool = pdByteArrayPool.getSharedPool();
+              byte[] eventCopy = bufferPool.getBuffer( fragmentLength );
+              System.arraycopy( data, offset + FRAGMENT_HEADER_SIZE, eventCopy, 0, fragmentLength );
+              synchronized ( this )
                 {
-                  byte[] buffer = new byte[ MAX_EVENT_SIZE ];
-                  System.arraycopy( pack.getDataBuffer(), pack.getOffset() + 2,
-                                    buffer, 0,
-                                    PACKET_DATA_LENGTH );
-                  senderToPartialEventTable.put( sender, buffer );
-                }
-              else
-                {
-                  bbPrinter.bbDebug( "LRMP ERROR: Got event part " + partNumber + "/" + numParts + " from sender " + sender + " but already have other parts!!!\n" );
+                  receiveBytesCopied += fragmentLength;
                 }
+              receivePipeline.spill( sender, this, eventCopy, 0, fragmentLength );
+              return ;
             }
 
-          // Else just add it to the existing partial event
-          // for this sender.
-          else
+          event = decodeEvent( data, offset + FRAGMENT_HEADER_SIZE, fragmentLength );
+        }
+
+      // Otherwise, it's one of many...
+      else
+        {
+          pdPartialMessage message = fragmentAssembler.addFragment( sender, messageID, totalLength,
+                                                                     fragmentOffset, data, offset + FRAGMENT_HEADER_SIZE, fragmentLength,
+                                                                     totalLength );
+          if ( message != null )
             {
-              if ( senderToPartialEventTable.containsKey( sender ) )
+              synchronized ( this )
                 {
-                  byte[] buffer = ( byte[] ) ( senderToPartialEventTable.get( sender ) );
-                  System.arraycopy( pack.getDataBuffer(), pack.getOffset() + 2,
-                                    buffer, ( ( partNumber - 1 ) * PACKET_DATA_LENGTH ),
-                                    PACKET_DATA_LENGTH );
+                  eventsReceived++;
                 }
-              else
+
+              // The message's buffer is from the shared pool, so the
+              // pipeline can have it and give it back.
+              if ( receivePipeline != null )
                 {
-                  bbPrinter.bbDebug( "LRMP ERROR: Got event part " + partNumber + "/" + numParts + " from sender " + sender + " but missing other parts!!!\n" );
+                  receivePipeline.spill( sender, this, message.getBuffer(), 0, message.getLength() );
+                  return ;
                 }
+
+              event = decodeEvent( message.getBuffer(), 0, message.getLength() );
+              fragmentAssembler.release( message );
             }
         }
 
       // If we got an event somehow out of the mess above, send it up...
-      if ( event != null )
+      deliverEvent( event );
+    }
+
+
+    /** Decode an event for the receive pipeline and send it up. */
+    public void decodeRawEvent( Object sender, byte[] buffer, int offset, int length )
+    {
+      deliverEvent( decodeEvent( buffer, offset, length ) );
+    }
+
+
+    /** Decode one event; returns null if it can't be decoded. */
+    protected pdBasicEvent decodeEvent( byte[] buffer, int offset, int length )
+    {
+      try
+        {
+          return eventCodec.decodeEvent( buffer, offset, length );
+        }
+      catch ( Exception e )
+        {
+          e.printStackTrace();
+          return null;
+        }
+    }
+
+
+    /** Send a received event up to the event accepter. */
+    protected void deliverEvent( pdBasicEvent event )
+    {
+      if ( event == null )
+        return ;
+
+      bbPrinter.bbDebug( "LRMP Transporter receiving " + event.getClass().getName() + ": " + event.getEventID() + "\n" );
+
+      if ( eventAccepter != null )
+        eventAccepter.acceptEvent( event );
+
+      if ( isCollectingStats )
+        eventStats.countEventReceived( event );
+    }
+
+
+    /**
+     * Note another node's heartbeat and answer it if it names us as
+     * responder, or time the round trip of one of ours.
+     */
+    protected void processControlPacket( byte[] data, int offset )
+    {
+      byte type = data[ offset + 1 ];
+      long heartbeatNodeID = readLong( data, offset + 2 );
+      int sequence = readInt( data, offset + 10 );
+      long sendTime = readLong( data, offset + 14 );
+      long responderID = readLong( data, offset + 22 );
+
+      if ( ( type == HEARTBEAT ) && ( heartbeatNodeID != nodeID ) )
         {
-          bbPrinter.bbDebug( "LRMP Transporter receiving " + event.getClass().getName() + ": " + event.getEventID() + "\n" );
-          
-          if ( eventAccepter != null )
-            eventAccepter.acceptEvent( event );
+          synchronized ( this )
+            {
+              heartbeatPeers.put( heartbeatNodeID, System.currentTimeMillis() );
+            }
 
+          if ( ( responderID == nodeID ) || ( responderID == ANY_RESPONDER ) )
+            sendControlPacket( HEARTBEAT_ACK, heartbeatNodeID, sequence, sendTime, nodeID );
+        }
+      else if ( ( type == HEARTBEAT_ACK ) && ( heartbeatNodeID == nodeID ) )
+        {
+          long now = System.currentTimeMillis();
+          lastAckTime = now;
           if ( isCollectingStats )
-            eventStats.countEventReceived( event );
+            roundTripTimes.record( now - sendTime );
+          if ( profileTuner != null )
+            profileTuner.countRoundTrip( now - sendTime );
+          releaseRetained( sequence );
         }
     }
 
@@ -355,9 +716,9 @@ public class pdEventTransporterLRMPImpl extends pdActiveSystemObject
 
     /** 
      * Send an event to the network. Because LRMP has a low max packet size,
-     * we may need to break the event up into many packets. In that case,
-     * each packet contains a chunk of the event plus a couple of extra
-     * bytes to represent the chunk number and the total number of chunks.
+     * we may need to break the event up into many packets. Each packet
+     * starts with a header giving the event's message ID, where in the
+     * event its bytes go, and the event's total length.
      */
     public void sendEvent( pdBasicEvent event )
     {
@@ -365,7 +726,29 @@ public class pdEventTransporterLRMPImpl extends pdActiveSystemObject
       if ( event == null )
         return ;
 
-      // Ignore this event if this object hasn't been started yet.
+      synchronized ( restartLock )
+        {
+          // Hold the event while LRMP is being restarted, or after a
+          // restart that failed, until one works.
+          if ( restarting || ( lrmpStarted && ( lrmp == null ) ) )
+            {
+              pendingSends.addElement( event );
+              return ;
+            }
+
+          // Send it, unless this object hasn't been started yet.
+          sendEventNow( event );
+        }
+    }
+
+
+    /**
+     * Break an event into packets and hand them to LRMP, keeping the
+     * event until a heartbeat sent after it is acknowledged. Called
+     * holding restartLock.
+     */
+    protected void sendEventNow( pdBasicEvent event )
+    {
       if ( lrmp == null )
         return ;
 
@@ -373,68 +756,333 @@ public class pdEventTransporterLRMPImpl extends pdActiveSystemObject
 
       try
         {
-          // Write the event into a byte buffer.
-          ByteArrayOutputStream outByteStream = new ByteArrayOutputStream();
-          ObjectOutputStream outObjectStream = new ObjectOutputStream( outByteStream );
-          outObjectStream.writeObject( event );
-          outObjectStream.flush();
-          outObjectStream.close();
-          byte[] eventBuffer = outByteStream.toByteArray();
+          // Encode the event straight into packets.
+          pdLRMPFragmentOutputStream fragmentStream = ( pdLRMPFragmentOutputStream ) fragmentStreams.get();
+          if ( fragmentStream == null )
+            {
+              fragmentStream = new pdLRMPFragmentOutputStream( this );
+              fragmentStreams.set( fragmentStream );
+            }
+          fragmentStream.reset( maxEventSize );
+          eventCodec.encodeEvent( event, fragmentStream );
+
+          int messageID;
+          synchronized ( this )
+            {
+              messageID = nextMessageID++;
+              eventsFragmented++;
+              packetsAllocated += fragmentStream.getPacketCount();
+              bytesCopied += fragmentStream.getBytesCopied();
+            }
+
+          Vector packets = fragmentStream.finish( messageID );
+          if ( profileTuner != null )
+            profileTuner.countBytesOffered( fragmentStream.getTotalLength() + ( packets.size() * FRAGMENT_HEADER_SIZE ) );
+          for ( int i = 0; i < packets.size(); i++ )
+            lrmp.send( ( LrmpPacket ) packets.elementAt( i ) );
+
+          fragmentStream.reset( maxEventSize );
+          retain( event );
+        }
+      catch ( Exception e )
+        {
+          bbPrinter.bbError( "pdEventTransporterLRMPImpl: could not send " + event.getClass().getName() + ": " + e.getMessage() + "\n" );
+        }
+
+      if ( isCollectingStats )
+        eventStats.countEventSent( event );
+    }
+
+
+    /**
+     * Keep a sent event until a heartbeat sent after it is acknowledged.
+     * Nothing is kept until heartbeats are being sent, since nothing
+     * would ever let it go. Called holding restartLock.
+     */
+    protected void retain( pdBasicEvent event )
+    {
+      int heartbeat;
+      synchronized ( this )
+        {
+          heartbeat = nextHeartbeat;
+        }
+      if ( heartbeat == 0 )
+        return ;
 
-          // Figure out how many packets we'll need.
-          int totalNumParts = eventBuffer.length / PACKET_DATA_LENGTH;
-          if ( ( eventBuffer.length % PACKET_DATA_LENGTH ) > 0 )
-            totalNumParts++;
-          int currPacket = 1;
+      retainedEvents.addElement( event );
+      retainedBefore.addElement( new Integer( heartbeat ) );
+      if ( retainedEvents.size() > maxRetained )
+        {
+          retainedEvents.removeElementAt( 0 );
+          retainedBefore.removeElementAt( 0 );
+          if ( retainedDropped++ == 0 )
+            bbPrinter.bbWarn( "pdEventTransporterLRMPImpl: more than " + maxRetained + " events sent without a heartbeat acknowledged; a restart won't resend the oldest\n" );
+        }
+    }
 
-          // Break the event into packet-sized chunks and send them.
-          int eventBufferPosition = 0;
-          int eventBufferBytesLeft = eventBuffer.length;
 
-          bbPrinter.bbDebug( "pdEventTransporterLRMPImpl:Need to send event of size " + eventBuffer.length + "; will be " + totalNumParts + " packets." );
+    /**
+     * A heartbeat has been acknowledged. LRMP delivers our packets in
+     * order, so every event sent before it has got through, and needn't
+     * be kept any longer.
+     */
+    protected void releaseRetained( int heartbeat )
+    {
+      synchronized ( restartLock )
+        {
+          int released = 0;
+          while ( ( released < retainedBefore.size() ) &&
+                  ( ( ( Integer ) retainedBefore.elementAt( released ) ).intValue() <= heartbeat ) )
+            released++;
 
-          while ( currPacket <= totalNumParts )
+          if ( released == retainedEvents.size() )
             {
-              // Write the event's bytes into an LRMP packet.
-              LrmpPacket pack = new LrmpPacket();
-              byte[] packetBuffer = pack.getDataBuffer();
-              int offset = pack.getOffset();
-              packetBuffer[ offset ] = ( new Integer( currPacket ) ).byteValue();
-              offset++;
-              packetBuffer[ offset ] = ( new Integer( totalNumParts ) ).byteValue();
-              offset++;
-
-              if ( eventBufferBytesLeft >= PACKET_DATA_LENGTH )
-                {
-                  System.arraycopy( eventBuffer, eventBufferPosition,
-                                    packetBuffer, offset,
-                                    PACKET_DATA_LENGTH );
-                  pack.setDataLength( PACKET_DATA_LENGTH + 2 ); // +1 for the part number bytes
-                  //bbPrinter.bbDebug("pdEventTransporterLRMPImpl:Sent packet " + packetsLeft + " of size " + PACKET_DATA_LENGTH);
-                }
-              else
-                {
-                  System.arraycopy( eventBuffer, eventBufferPosition,
-                                    packetBuffer, offset,
-                                    eventBufferBytesLeft );
-                  pack.setDataLength( eventBufferBytesLeft + 2 ); // +1 for the part number bytes
-                  //bbPrinter.bbDebug("pdEventTransporterLRMPImpl:Sent packet " + packetsLeft + " of size " + eventBufferBytesLeft);
-                }
+              retainedEvents.removeAllElements();
+              retainedBefore.removeAllElements();
+            }
+          else
+            for ( int i = 0; i < released; i++ )
+              {
+                retainedEvents.removeElementAt( 0 );
+                retainedBefore.removeElementAt( 0 );
+              }
+        }
+    }
+
+
+    /** Send a control packet. */
+    protected void sendControlPacket( byte type, long heartbeatNodeID, int sequence, long sendTime, long responderID )
+    {
+      Lrmp lrmp;
+      synchronized ( restartLock )
+        {
+          lrmp = this.lrmp;
+          if ( ( lrmp == null ) || restarting )
+            return ;
+        }
+
+      LrmpPacket pack = new LrmpPacket();
+      byte[] packetBuffer = pack.getDataBuffer();
+      int offset = pack.getOffset();
+      packetBuffer[ offset ] = CONTROL_HEADER;
+      packetBuffer[ offset + 1 ] = type;
+      writeLong( packetBuffer, offset + 2, heartbeatNodeID );
+      writeInt( packetBuffer, offset + 10, sequence );
+      writeLong( packetBuffer, offset + 14, sendTime );
+      writeLong( packetBuffer, offset + 22, responderID );
+      pack.setDataLength( CONTROL_PACKET_SIZE );
+
+      try
+        {
+          lrmp.send( pack );
+        }
+      catch ( Exception e )
+        {
+          bbPrinter.bbError( "pdEventTransporterLRMPImpl: could not send control packet: " + e.getMessage() + "\n" );
+        }
+    }
+
 
-              lrmp.send( pack );
+    /**
+     * Send a heartbeat, to be acknowledged through LRMP by one other
+     * node. The responder rotates through the nodes we've heard a
+     * heartbeat from within peerTimeoutMillis, so each heartbeat costs
+     * one acknowledgement however big the group is. Until we've heard
+     * from anybody, any node may answer.
+     */
+    public void sendHeartbeat( long peerTimeoutMillis )
+    {
+      int sequence;
+      long responderID = ANY_RESPONDER;
+      long now = System.currentTimeMillis();
+      synchronized ( this )
+        {
+          sequence = nextHeartbeat++;
 
-              eventBufferBytesLeft -= PACKET_DATA_LENGTH;
-              eventBufferPosition += PACKET_DATA_LENGTH;
-              currPacket++;
+          long[] peers = heartbeatPeers.keys();
+          int livePeers = 0;
+          for ( int i = 0; i < peers.length; i++ )
+            {
+              if ( ( now - heartbeatPeers.get( peers[ i ], 0 ) ) > peerTimeoutMillis )
+                heartbeatPeers.remove( peers[ i ] );
+              else
+                peers[ livePeers++ ] = peers[ i ];
             }
+
+          if ( livePeers > 0 )
+            responderID = peers[ ( sequence & Integer.MAX_VALUE ) % livePeers ];
+        }
+      sendControlPacket( HEARTBEAT, nodeID, sequence, now, responderID );
+    }
+
+
+    /**
+     * Throw away the LRMP instance and start a new one, keeping this
+     * transporter, its accepter and its profile. Events handed to the
+     * old instance that no heartbeat acknowledgement has vouched for are
+     * sent again on the new one, followed by those sent meanwhile, in
+     * order; receivers may see some of them twice. If the new instance
+     * can't be made, events are held until a later restart works.
+     */
+    public void restartLRMP()
+    {
+      Lrmp oldLrmp;
+      synchronized ( restartLock )
+        {
+          if ( restarting || !lrmpStarted )
+            return ;
+          restarting = true;
+          oldLrmp = lrmp;
+          lrmp = null;
+        }
+
+      bbPrinter.bbWarn( "pdEventTransporterLRMPImpl: restarting LRMP on " + multicastAddress + ":" + port + "\n" );
+      if ( oldLrmp != null )
+        oldLrmp.stop();
+      fragmentAssembler.clear();
+
+      Lrmp newLrmp = null;
+      try
+        {
+          newLrmp = new Lrmp( multicastAddress, port, ttl, profile );
+          newLrmp.start();
         }
       catch ( Exception e )
         {
-          e.printStackTrace();
+          bbPrinter.bbError( "pdEventTransporterLRMPImpl: could not restart: " + e.getMessage() + "\n" );
+          newLrmp = null;
         }
 
-      if ( isCollectingStats )
-        eventStats.countEventSent( event );
+      synchronized ( restartLock )
+        {
+          restarting = false;
+          if ( !lrmpStarted )
+            {
+              // Stopped while we were at it.
+              if ( newLrmp != null )
+                newLrmp.stop();
+              pendingSends.removeAllElements();
+              return ;
+            }
+
+          lrmp = newLrmp;
+          lastReceiveTime = System.currentTimeMillis();
+          lastAckTime = lastReceiveTime;
+          if ( lrmp == null )
+            return ;
+          restartCount++;
+
+          // Resend what the old instance may not have got out, then what
+          // piled up since.
+          Vector replay = retainedEvents;
+          retainedEvents = new Vector();
+          retainedBefore = new Vector();
+          for ( int i = 0; i < pendingSends.size(); i++ )
+            replay.addElement( pendingSends.elementAt( i ) );
+          pendingSends.removeAllElements();
+
+          if ( replay.size() > 0 )
+            bbPrinter.bbWarn( "pdEventTransporterLRMPImpl: resending " + replay.size() + " events after restart\n" );
+          for ( int i = 0; i < replay.size(); i++ )
+            sendEventNow( ( pdBasicEvent ) replay.elementAt( i ) );
+        }
+    }
+
+
+    /** When we last got any packet from LRMP, in milliseconds. */
+    public long getLastReceiveTime()
+    {
+      return lastReceiveTime;
+    }
+
+
+    /** When another node last acknowledged one of our heartbeats, in milliseconds. */
+    public long getLastAckTime()
+    {
+      return lastAckTime;
+    }
+
+
+    /** Get the heartbeat round-trip times through LRMP. */
+    public pdEventTransporterHistogram getRoundTripTimes()
+    {
+      return roundTripTimes;
+    }
+
+
+    /** Get the number of times LRMP has been restarted in place. */
+    public long getRestartCount()
+    {
+      return restartCount;
+    }
+
+
+    /** Set the codec used to encode and decode events. */
+    public void setEventCodec( pdEventCodec eventCodec )
+    {
+      this.eventCodec = eventCodec;
+    }
+
+
+    /** Get the codec used to encode and decode events. */
+    public pdEventCodec getEventCodec()
+    {
+      return eventCodec;
+    }
+
+
+    /** Get the fragment assembler, for its counters. */
+    public pdFragmentAssembler getFragmentAssembler()
+    {
+      return fragmentAssembler;
+    }
+
+
+    /** Get the profile tuner, for its live rate and loss figures; null if not tuning. */
+    public pdLRMPProfileTuner getProfileTuner()
+    {
+      return profileTuner;
+    }
+
+
+    /** Get the average number of packets made per event sent. */
+    public synchronized double getPacketsPerEvent()
+    {
+      return ( eventsFragmented == 0 ) ? 0 : ( ( double ) packetsAllocated / eventsFragmented );
+    }
+
+
+    /**
+     * Get the average number of bytes copied into packets per event
+     * sent: what the codec wrote into its own buffers first rather than
+     * straight into the packets.
+     */
+    public synchronized double getBytesCopiedPerEvent()
+    {
+      return ( eventsFragmented == 0 ) ? 0 : ( ( double ) bytesCopied / eventsFragmented );
+    }
+
+
+    /**
+     * Get the average number of bytes copied per event received: into
+     * the fragment assembler's buffers, or out of a whole-event packet
+     * for the receive pipeline.
+     */
+    public double getReceiveBytesCopiedPerEvent()
+    {
+      pdFragmentAssembler assembler = fragmentAssembler;
+      long assemblerBytes = ( assembler == null ) ? 0 : assembler.getBytesCopied();
+      synchronized ( this )
+        {
+          return ( eventsReceived == 0 ) ? 0 : ( ( double ) ( receiveBytesCopied + assemblerBytes ) / eventsReceived );
+        }
+    }
+
+
+    /** Get the number of packets dropped for having a header version we don't know. */
+    public long getUnknownVersionPacketCount()
+    {
+      return unknownVersionPackets;
     }
 
 
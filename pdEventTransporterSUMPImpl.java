@@ -45,14 +45,23 @@ public class pdEventTransporterSUMPImpl extends pdActiveSystemObject
       new pdEventTransporterStatistics( "SUMP" );
 
     /** 
-     * Number of IPMulticast (unreliable) events we've seen since the last LRMP  
-     * (reliable) event. If this number exceeds some threshhold, we assume the
-     * LRMP transporter is locked up so we kill it and make a new one. 
+     * When we last got an unreliable event, in milliseconds. While these
+     * keep coming there are other nodes out there, so silence from LRMP
+     * means it has stalled.
      */
-    transient protected long LRMPWatchdogCounter = 0;
+    transient protected long lastUnreliableReceiveTime = 0;
 
-    /** Threshhold described in previous comment for LRMPWatchdogCounter. */                                                  
-    protected long LRMPWatchdogThreshhold = 30;
+    /** Milliseconds between LRMP heartbeats; 0 means no supervisor. */
+    protected long LRMPHeartbeatInterval = 2000;
+
+    /** Milliseconds of LRMP silence that count as a stall. */
+    protected long LRMPStallTimeout = 10000;
+
+    /** Heartbeats LRMP and restarts it when it stalls. */
+    transient protected pdLRMPSupervisor LRMPSupervisor = null;
+
+    /** Picks the lane each outgoing event takes. */
+    transient protected pdSUMPRoutingPolicy routingPolicy = null;
     
         
     /** Create a new SUMP transporter using this multicast address and port. */
@@ -65,16 +74,19 @@ public class pdEventTransporterSUMPImpl extends pdActiveSystemObject
         LRMPTransporter = new pdEventTransporterLRMPImpl( multicastAddress, port + 1 );
         
         // Check command line args
-        String LRMPWatchdogThreshholdString = CommandLine.get( "LRMPWatchdogThreshhold", "30" );
         try
           {
-            LRMPWatchdogThreshhold = Long.parseLong( LRMPWatchdogThreshholdString );
+            LRMPHeartbeatInterval = Long.parseLong( CommandLine.get( "LRMPHeartbeatInterval", "2000" ) );
+            LRMPStallTimeout = Long.parseLong( CommandLine.get( "LRMPStallTimeout", "10000" ) );
           }
         catch ( NumberFormatException e )
           {
-            bbPrinter.bbError( "LRMPWatchdogThreshhold not a number! Using 30...\n" );
-            LRMPWatchdogThreshhold = 30;
+            bbPrinter.bbError( "LRMPHeartbeatInterval or LRMPStallTimeout not a number! Using 2000 and 10000...\n" );
+            LRMPHeartbeatInterval = 2000;
+            LRMPStallTimeout = 10000;
           }
+        createSupervisor();
+        createRoutingPolicy();
       }
 
 
@@ -86,9 +98,40 @@ public class pdEventTransporterSUMPImpl extends pdActiveSystemObject
         IPMulticastTransporter = new pdEventTransporterIPMulticastImpl( multicastAddress, port );
         LRMPTransporter = new pdEventTransporterLRMPImpl( multicastAddress, port + 1 );
         this.status = pdActiveObject.STOPPED;
+        lastUnreliableReceiveTime = 0;
+        createSupervisor();
+        createRoutingPolicy();
       }
 
 
+    /**
+     * Create the routing policy named by SUMPRoutingPolicy on the command
+     * line: "reliable" (the default) routes on the reliable bit alone,
+     * "adaptive" uses pdSUMPRoutingPolicyAdaptiveImpl.
+     */
+    protected void createRoutingPolicy()
+    {
+      String policyName = CommandLine.get( "SUMPRoutingPolicy", "reliable" );
+      if ( policyName.equalsIgnoreCase( "adaptive" ) )
+        routingPolicy = new pdSUMPRoutingPolicyAdaptiveImpl();
+      else
+        {
+          if ( !policyName.equalsIgnoreCase( "reliable" ) )
+            bbPrinter.bbError( "Unknown SUMPRoutingPolicy " + policyName + "! Using reliable...\n" );
+          routingPolicy = new pdSUMPRoutingPolicyReliableImpl();
+        }
+    }
+
+
+    /** Create the LRMP supervisor, unless LRMPHeartbeatInterval is 0. */
+    protected void createSupervisor()
+    {
+      LRMPSupervisor = null;
+      if ( LRMPHeartbeatInterval > 0 )
+        LRMPSupervisor = new pdLRMPSupervisor( this, LRMPHeartbeatInterval, LRMPStallTimeout );
+    }
+
+
     ////////////////////////////////////////////////////////////
     //                                                        //
     //  pdActiveSystemObject abstract method implementations  //
@@ -104,13 +147,20 @@ public class pdEventTransporterSUMPImpl extends pdActiveSystemObject
           return false;
         }
 
-      return ( IPMulticastTransporter._start() && LRMPTransporter.start() );
+      if ( !( IPMulticastTransporter._start() && LRMPTransporter.start() ) )
+        return false;
+
+      if ( LRMPSupervisor != null )
+        LRMPSupervisor.start();
+      return true;
     }
 
 
     /** Stop the threads of each transporter. */
     protected boolean _stop()
     {
+      if ( LRMPSupervisor != null )
+        LRMPSupervisor.stop();
       IPMulticastTransporter.stop();
       LRMPTransporter.stop();
       return true;
@@ -144,37 +194,10 @@ public class pdEventTransporterSUMPImpl extends pdActiveSystemObject
     /** Accept an event to be dispatched */
     public void acceptEvent( pdBasicEvent event )
     {
-      //System.out.print( "SUMP transporter got event, passing it on... " );
-      if ( event.getTransportReliably() )
-        {
-          //System.out.println(" probably from LRMP");
-          LRMPWatchdogCounter = 0;
-        }
-      else
-        {
-          //System.out.println(" probably from IPMulticast");        
-          LRMPWatchdogCounter++;
-        }
-      
-      if ( LRMPWatchdogCounter >= LRMPWatchdogThreshhold )
-      {
-        bbPrinter.bbWarn( "LRMP transporter seems locked up--resetting...\n" );
-        LRMPTransporter.stop();
-        try 
-          {
-            LRMPTransporter = new pdEventTransporterLRMPImpl( multicastAddress, port + 1 );
-            LRMPTransporter.setEventAccepter( this );
-            LRMPTransporter.start();
-          }
-        catch ( Exception e )
-          {
-            bbPrinter.bbError( "LRMP transporter could not be created--you should restart this application.\n" );
-            e.printStackTrace();
-          }
-        LRMPWatchdogCounter = 0;
-      }
-                                                           
-      this.eventAccepter.acceptEvent( event );    
+      if ( !event.getTransportReliably() )
+        lastUnreliableReceiveTime = System.currentTimeMillis();
+
+      this.eventAccepter.acceptEvent( event );
     }
 
 
@@ -219,17 +242,34 @@ public class pdEventTransporterSUMPImpl extends pdActiveSystemObject
     {
       bbPrinter.bbDebug( "SUMP Transporter sending " + event.getClass().getName() + ": " + event.toString() + "\n" );
 
-      if ( event.getTransportReliably() )
+      if ( routingPolicy.chooseLane( event, this ) == pdSUMPRoutingPolicy.MULTICAST_LANE )
         {
-          LRMPTransporter.sendEvent( event );
+          IPMulticastTransporter.sendEvent( event );
         }
       else
         {
-          IPMulticastTransporter.sendEvent( event );
+          // Don't let a held unreliable change overtake this one.
+          IPMulticastTransporter.flushCoalescedEvents( event.getTargetID() );
+          LRMPTransporter.sendEvent( event );
         }
     }
 
 
+    /** Set the codec both underlying transporters use. */
+    public void setEventCodec( pdEventCodec eventCodec )
+    {
+      IPMulticastTransporter.setEventCodec( eventCodec );
+      LRMPTransporter.setEventCodec( eventCodec );
+    }
+
+
+    /** Get the codec both underlying transporters use. */
+    public pdEventCodec getEventCodec()
+    {
+      return IPMulticastTransporter.getEventCodec();
+    }
+
+
     /** Turn on statistics-collecting. */
     public void startCollectingStatistics()
     {
@@ -269,6 +309,45 @@ public class pdEventTransporterSUMPImpl extends pdActiveSystemObject
     }
 
 
+    /** When we last got an unreliable event, in milliseconds. */
+    public long getLastUnreliableReceiveTime()
+    {
+      return lastUnreliableReceiveTime;
+    }
+
+
+    /** Set the policy that picks each outgoing event's lane. */
+    public void setRoutingPolicy( pdSUMPRoutingPolicy routingPolicy )
+    {
+      this.routingPolicy = routingPolicy;
+    }
+
+
+    /** Get the policy that picks each outgoing event's lane. */
+    public pdSUMPRoutingPolicy getRoutingPolicy()
+    {
+      return routingPolicy;
+    }
+
+
+    /**
+     * Get LRMP's heartbeat round-trip times, the latency of the reliable
+     * lane, recorded while statistics are being collected.
+     */
+    public pdEventTransporterHistogram getLRMPRoundTripTimes()
+    {
+      return LRMPTransporter.getRoundTripTimes();
+    }
+
+
+
+    /** Get the LRMP supervisor, or null if there isn't one. */
+    public pdLRMPSupervisor getLRMPSupervisor()
+    {
+      return LRMPSupervisor;
+    }
+
+
     /** Get the LRMP transporter */
     public pdEventTransporterLRMPImpl getLRMPTransporter()
     {
@@ -14,23 +14,46 @@ import pdKernel.*;
  * Send events to a serial broadcast (TCP/IP-based) server.
  * Read events from a the same serial broadcast (TCP/IP-based) server.
  * <P>
- * Nasty code: If we lose the connection, we try to regain it. However,
- * this goes on while the rest of the system is dispatching the event,
- * so at least one part of the system is stuck until we reconnect.
- * So there is a connection retry limit of 3; after that, it gives up
- * forever, so at least the local simulation can continue.
+ * sendEvent only puts the event on a bounded outbound queue; a writer
+ * thread takes events off the queue and writes them to the server, so
+ * the rest of the system never waits on the network. What happens
+ * when the queue is full is set by the TCPIPBridgeOverflowPolicy
+ * command line option (see pdBoundedEventQueue).
  * <P>
- * There really should be an event queue instead that holds events until
- * a connection is made so that the rest of the system doesn't need
- * to wait. Also, the queue should be checked to make sure it doesn't
- * grow too large while waiting for a connection that may never happen.
- * These improvements may come someday if we actually use this
- * transporter much.
+ * If we lose the connection, the reader or writer thread that notices
+ * tries to regain it, waiting longer after each failed try (exponential
+ * backoff) up to a limit, and keeps trying until the transporter is
+ * stopped. Events sent meanwhile wait on the queue.
+ * <P>
+ * TCPIPBridgeFraming picks how events are written on the connection.
+ * "objects" (the default) writes each event with an object stream,
+ * which the original server and clients understand; the event itself
+ * with the default serialization codec, or its encoded bytes with the
+ * compact one. The stream is reset after every event so neither end
+ * keeps a reference to every event ever sent. "framed" skips object streams altogether and writes each
+ * encoded event as a 4-byte length followed by its bytes; the server
+ * must relay frames the same way.
+ * <P>
+ * Writes go through a buffer, with Nagle's algorithm turned off since
+ * we do our own batching. TCPIPBridgeFlushPolicy says when the buffer
+ * goes out: "idle" (the default) flushes whenever the outbound queue
+ * runs dry, "reliable" after every reliable event, "size" and "time"
+ * only at the thresholds. Whatever the policy, the buffer is flushed
+ * once it holds TCPIPBridgeFlushBytes bytes or its oldest event has
+ * waited TCPIPBridgeFlushMillis milliseconds.
+ * <P>
+ * Unreliable events used to be dropped outright. With
+ * TCPIPBridgeUnreliableRate above zero, unreliable object changes
+ * ride a second, lossy lane on the same connection instead: only the
+ * newest change per object is kept (see pdEventCoalescer), and the
+ * lane is written at most that many times a second, and only when
+ * the reliable queue is empty. Other unreliable events are still
+ * dropped.
  *
  * @author BARS Team
  */
 public class pdEventTransporterTCPIPBridgeImpl extends pdActiveSystemObject
-      implements pdEventTransporter, Runnable
+      implements pdEventTransporter, pdRawEventDecoder, Runnable
   {
     /** The server address */
     protected String serverHostname = null;
@@ -47,20 +70,128 @@ public class pdEventTransporterTCPIPBridgeImpl extends pdActiveSystemObject
     /** Write objects to the server. */
     transient protected ObjectOutputStream objectsOutput = null;
 
+    /** Read length-prefixed frames from the server, in framed mode. */
+    transient protected DataInputStream framesInput = null;
+
+    /** Write length-prefixed frames to the server, in framed mode. */
+    transient protected DataOutputStream framesOutput = null;
+
+    /** Are we writing length-prefixed frames instead of objects? */
+    protected boolean framed = false;
+
+    /** Largest frame we'll accept from the server, in bytes. */
+    protected int maxFrameBytes = 16777216;
+
+    /** Buffer the writer thread encodes events into; reused for every event. */
+    transient protected ByteArrayOutputStream encodeBuffer = new ByteArrayOutputStream();
+
+    /** Where the reader thread gets frame buffers. */
+    transient protected pdByteArrayPool bufferPool = pdByteArrayPool.getSharedPool();
+
+    /** Decode threads we hand received frames to, or null to decode them here. */
+    transient protected pdEventReceivePipeline receivePipeline = pdEventReceivePipeline.getSharedPipeline();
+
+    /** Flush policy: flush when the outbound queue is empty. */
+    public static final int FLUSH_WHEN_IDLE = 0;
+
+    /** Flush policy: flush after every reliable event. */
+    public static final int FLUSH_AFTER_RELIABLE = 1;
+
+    /** Flush policy: flush only at the size threshold (or the time threshold). */
+    public static final int FLUSH_ON_SIZE = 2;
+
+    /** Flush policy: flush only at the time threshold (or the size threshold). */
+    public static final int FLUSH_ON_TIME = 3;
+
+    /** When to flush the output buffer. */
+    protected int flushPolicy = FLUSH_WHEN_IDLE;
+
+    /** Flush once this many bytes are waiting in the output buffer. */
+    protected int flushBytes = 8192;
+
+    /** Flush once the oldest event in the output buffer has waited this long, in milliseconds. */
+    protected long flushMillis = 20;
+
+    /** Events written since the last flush. */
+    transient protected int unflushedEvents = 0;
+
+    /** Bytes written since the last flush. */
+    transient protected long unflushedBytes = 0;
+
+    /** When the first event since the last flush was written, in milliseconds. */
+    transient protected long firstUnflushedTime = 0;
+
+    /**
+     * Reliable events written since the last flush. They're kept until a
+     * flush gets them to the server, and written again if the connection
+     * they were buffered on goes down first.
+     */
+    transient protected Vector unflushedReliable = new Vector();
+
+    /** The connection generation the unflushed events were written on. */
+    transient protected int unflushedGeneration = 0;
+
+    /** Number of reliable events written again after losing a connection. */
+    transient protected long rewrittenEvents = 0;
+
+    /** Newest unreliable change per object, waiting for spare capacity; null if the lane is off. */
+    transient protected pdEventCoalescer lossyLane = null;
+
+    /** Milliseconds between writes of the lossy lane. */
+    protected long lossyIntervalMillis = 0;
+
+    /** When the lossy lane may next be written, in milliseconds. */
+    transient protected long nextLossySendTime = 0;
+
+    /** Number of events written from the lossy lane. */
+    transient protected long lossyEventsSent = 0;
+
+    /** Events per flush. */
+    transient protected pdEventTransporterHistogram flushBatchSizes =
+      pdEventTransporterHistogram.createPowersOfTwo( "TCPIPBridge events per flush", 12 );
+
+    /** Milliseconds from the first buffered event to the flush. */
+    transient protected pdEventTransporterHistogram flushLatencies =
+      pdEventTransporterHistogram.createPowersOfTwo( "TCPIPBridge flush latency (ms)", 12 );
+
+    /** Number of events written to the server. */
+    transient protected long framesWritten = 0;
+
+    /** Number of encoded event bytes written to the server. */
+    transient protected long bytesWritten = 0;
+
+    /** Number of events read from the server. */
+    transient protected long framesRead = 0;
+
+    /** Number of encoded event bytes read from the server. */
+    transient protected long bytesRead = 0;
+
     /** Thread for this runnable object. */
     transient protected Thread thisThread = null;
 
+    /** Thread writing queued events to the server. */
+    transient protected Thread writerThread = null;
+
+    /** How long stopping waits for each thread to finish, in milliseconds. */
+    public static final long STOP_JOIN_MILLIS = 5000;
+
     /** Has this object's thread been started? */
     transient boolean threadStarted = false;
 
-    /** Are we currently trying to connect to the server? */
-    transient boolean tryingToConnect = false;
+    /** Lock held while connecting or swapping connections. */
+    transient protected Object connectionLock = new Object();
 
-    /** Current try to connect to socket. */
-    transient int currentTry = 0;
+    /** Goes up by one each time we get a new connection. */
+    transient protected int connectionGeneration = 0;
 
-    /** Should we give up trying to connect to the socket? */
-    transient boolean giveUp = false;
+    /** Events waiting for the writer thread. */
+    transient protected pdBoundedEventQueue outboundQueue = null;
+
+    /** First wait between connection tries, in milliseconds. */
+    protected long reconnectMillis = 500;
+
+    /** Longest wait between connection tries, in milliseconds. */
+    protected long maxReconnectMillis = 30000;
 
     /**
      * By default, we will receive events; can be set to false
@@ -73,6 +204,9 @@ public class pdEventTransporterTCPIPBridgeImpl extends pdActiveSystemObject
     /** The event-accepting object. */
     protected pdEventAccepter eventAccepter = null;
 
+    /** Encodes and decodes our events. */
+    transient protected pdEventCodec eventCodec = pdEventCodecCompactImpl.getDefaultCodec();
+
 
     /** currently collecting statistics? */
     transient protected boolean isCollectingStats = false;
@@ -88,69 +222,245 @@ public class pdEventTransporterTCPIPBridgeImpl extends pdActiveSystemObject
       {
         this.serverHostname = serverHostname;
         this.serverPort = serverPort;
+
+        // Check command line args
+        try
+          {
+            reconnectMillis = Long.parseLong( CommandLine.get( "TCPIPBridgeReconnectMillis", "500" ) );
+            maxReconnectMillis = Long.parseLong( CommandLine.get( "TCPIPBridgeMaxReconnectMillis", "30000" ) );
+          }
+        catch ( NumberFormatException e )
+          {
+            bbPrinter.bbError( "TCPIPBridgeReconnectMillis or TCPIPBridgeMaxReconnectMillis not a number! Using 500 and 30000...\n" );
+            reconnectMillis = 500;
+            maxReconnectMillis = 30000;
+          }
+
+        framed = CommandLine.get( "TCPIPBridgeFraming", "objects" ).equalsIgnoreCase( "framed" );
+        try
+          {
+            maxFrameBytes = Integer.parseInt( CommandLine.get( "TCPIPBridgeMaxFrameBytes", "16777216" ) );
+          }
+        catch ( NumberFormatException e )
+          {
+            bbPrinter.bbError( "TCPIPBridgeMaxFrameBytes not a number! Using 16777216...\n" );
+            maxFrameBytes = 16777216;
+          }
+
+        String flushPolicyName = CommandLine.get( "TCPIPBridgeFlushPolicy", "idle" );
+        if ( flushPolicyName.equalsIgnoreCase( "reliable" ) )
+          flushPolicy = FLUSH_AFTER_RELIABLE;
+        else if ( flushPolicyName.equalsIgnoreCase( "size" ) )
+          flushPolicy = FLUSH_ON_SIZE;
+        else if ( flushPolicyName.equalsIgnoreCase( "time" ) )
+          flushPolicy = FLUSH_ON_TIME;
+        else
+          flushPolicy = FLUSH_WHEN_IDLE;
+
+        try
+          {
+            flushBytes = Integer.parseInt( CommandLine.get( "TCPIPBridgeFlushBytes", "8192" ) );
+            flushMillis = Long.parseLong( CommandLine.get( "TCPIPBridgeFlushMillis", "20" ) );
+          }
+        catch ( NumberFormatException e )
+          {
+            bbPrinter.bbError( "TCPIPBridgeFlushBytes or TCPIPBridgeFlushMillis not a number! Using 8192 and 20...\n" );
+            flushBytes = 8192;
+            flushMillis = 20;
+          }
       }
 
 
     /** Initialize a remote copy of this transporter. */
     public void initializeRemoteCopy() throws Exception
       {
+        socket = null;
         objectsInput = null;
         objectsOutput = null;
+        framesInput = null;
+        framesOutput = null;
+        encodeBuffer = new ByteArrayOutputStream();
+        bufferPool = pdByteArrayPool.getSharedPool();
+        receivePipeline = pdEventReceivePipeline.getSharedPipeline();
+        unflushedEvents = 0;
+        unflushedBytes = 0;
+        unflushedReliable = new Vector();
+        unflushedGeneration = 0;
+        rewrittenEvents = 0;
+        lossyLane = null;
+        lossyEventsSent = 0;
+        flushBatchSizes = pdEventTransporterHistogram.createPowersOfTwo( "TCPIPBridge events per flush", 12 );
+        flushLatencies = pdEventTransporterHistogram.createPowersOfTwo( "TCPIPBridge flush latency (ms)", 12 );
         thisThread = null;
+        writerThread = null;
         threadStarted = false;
-        tryingToConnect = false;
-        currentTry = 0;
-        giveUp = false;
+        connectionLock = new Object();
+        connectionGeneration = 0;
+        outboundQueue = null;
+        eventCodec = pdEventCodecCompactImpl.getDefaultCodec();
         this.status = pdActiveObject.STOPPED;
       }
 
 
-    /** Get a connection to the server. */
-    protected void getConnection()
+    /**
+     * Create the outbound queue. TCPIPBridgeQueueSize on the command line
+     * is its capacity (default 1000) and TCPIPBridgeOverflowPolicy what to
+     * do when it's full: dropOldestUnreliable (the default), block or reject.
+     * Under dropOldestUnreliable a reliable event waits for room if there's
+     * no unreliable one to throw out.
+     */
+    protected void createOutboundQueue()
     {
-      // If we shouldn't try to connect, don't.
-      if ( giveUp )
-        return ;
+      int queueSize = 1000;
+      try
+        {
+          queueSize = Integer.parseInt( CommandLine.get( "TCPIPBridgeQueueSize", "1000" ) );
+        }
+      catch ( NumberFormatException e )
+        {
+          bbPrinter.bbError( "TCPIPBridgeQueueSize not a number! Using 1000...\n" );
+          queueSize = 1000;
+        }
 
-      // If we're already trying to connect, don't try again (stupid
-      // way of synchronizing code).
-      if ( tryingToConnect )
-        return ;
-      tryingToConnect = true;
+      int overflowPolicy = pdBoundedEventQueue.parseOverflowPolicy( CommandLine.get( "TCPIPBridgeOverflowPolicy", "dropOldestUnreliable" ) );
+      outboundQueue = new pdBoundedEventQueue( queueSize, overflowPolicy );
+    }
 
-      // Should we give up yet?
-      currentTry++;
-      if ( currentTry >= 3 )
-        giveUp = true;
 
-      boolean notConnected = true;
+    /**
+     * Create the lossy lane if TCPIPBridgeUnreliableRate on the command
+     * line is above zero; it's how many times a second the lane may be
+     * written. The default, zero, drops unreliable events as before.
+     */
+    protected void createLossyLane()
+    {
+      double lossyRate = 0;
+      try
+        {
+          lossyRate = Double.valueOf( CommandLine.get( "TCPIPBridgeUnreliableRate", "0" ) ).doubleValue();
+        }
+      catch ( NumberFormatException e )
+        {
+          bbPrinter.bbError( "TCPIPBridgeUnreliableRate not a number! Dropping unreliable events...\n" );
+          lossyRate = 0;
+        }
 
-      while ( notConnected )
+      if ( lossyRate <= 0 )
         {
-          try
+          lossyLane = null;
+          return ;
+        }
+
+      // The writer thread drains the lane itself, so it needs no sender.
+      lossyIntervalMillis = Math.max( 1, ( long ) ( 1000 / lossyRate ) );
+      nextLossySendTime = System.currentTimeMillis();
+      lossyLane = new pdEventCoalescer( null, lossyIntervalMillis );
+    }
+
+
+    /**
+     * Get a connection to the server, unless a newer one than
+     * failedGeneration already exists. Keeps trying, with exponential
+     * backoff, until connected or stopped. Returns true if connected.
+     */
+    protected boolean reconnect( int failedGeneration )
+    {
+      synchronized ( connectionLock )
+        {
+          // Someone else already replaced the connection that failed.
+          if ( ( connectionGeneration != failedGeneration ) && isConnected() )
+            return true;
+
+          closeConnection();
+
+          long backoffMillis = reconnectMillis;
+          while ( threadStarted )
             {
-              // Open my outgoing event socket (incoming to server).
-              bbPrinter.bbNotice( "EventTransporter: Opening socket to server " + serverHostname + ":" + serverPort + "\n" );
-              socket = new Socket( serverHostname, serverPort );
-              if ( socket != null )
+              if ( getConnection() )
+                {
+                  connectionGeneration++;
+                  return true;
+                }
+
+              try
                 {
-                  socket.setSoTimeout( 40000 );
-                  // Won't compile on SGI... still has java 1.2.2
-                  //socket.setKeepAlive(true);
-                  bbPrinter.bbNotice( "EventTransporter: Opening object streams on socket\n" );
-                  objectsInput = new ObjectInputStream( socket.getInputStream() );
-                  objectsOutput = new ObjectOutputStream( socket.getOutputStream() );
-                  notConnected = false;
-                  bbPrinter.bbNotice( "EventTransporter: Object streams opened successfully\n" );
+                  Thread.sleep( backoffMillis );
                 }
+              catch ( InterruptedException e )
+                {
+                  return false;
+                }
+              backoffMillis = Math.min( backoffMillis * 2, maxReconnectMillis );
             }
-          catch ( Exception e )
+
+          return false;
+        }
+    }
+
+
+    /** Try once to get a connection to the server. Returns true if connected. */
+    protected boolean getConnection()
+    {
+      try
+        {
+          // Open my outgoing event socket (incoming to server).
+          bbPrinter.bbNotice( "EventTransporter: Opening socket to server " + serverHostname + ":" + serverPort + "\n" );
+          socket = new Socket( serverHostname, serverPort );
+          socket.setSoTimeout( 40000 );
+          socket.setTcpNoDelay( true );
+          OutputStream bufferedOutput = new BufferedOutputStream( socket.getOutputStream(), Math.max( 512, flushBytes * 2 ) );
+          // Won't compile on SGI... still has java 1.2.2
+          //socket.setKeepAlive(true);
+          if ( framed )
+            {
+              framesInput = new DataInputStream( socket.getInputStream() );
+              framesOutput = new DataOutputStream( bufferedOutput );
+              bbPrinter.bbNotice( "EventTransporter: Frame streams opened successfully\n" );
+            }
+          else
             {
-              bbPrinter.bbNotice( "EventTransporter: connection to server " + serverHostname + ":" + serverPort + " failed.\n" );
+              bbPrinter.bbNotice( "EventTransporter: Opening object streams on socket\n" );
+              objectsInput = new ObjectInputStream( socket.getInputStream() );
+              objectsOutput = new ObjectOutputStream( bufferedOutput );
+              objectsOutput.flush();
+              bbPrinter.bbNotice( "EventTransporter: Object streams opened successfully\n" );
             }
+          return true;
+        }
+      catch ( Exception e )
+        {
+          bbPrinter.bbNotice( "EventTransporter: connection to server " + serverHostname + ":" + serverPort + " failed.\n" );
+          closeConnection();
+          return false;
+        }
+    }
+
+
+    /** Close the current connection, if any. */
+    protected void closeConnection()
+    {
+      try
+        {
+          if ( socket != null )
+            socket.close();
+        }
+      catch ( Exception e )
+        {
+          bbPrinter.bbDebug( "pdEventTransporterTCPIPBridgeImpl: error closing socket: " + e.getMessage() + "\n" );
         }
 
-      tryingToConnect = false;
+      socket = null;
+      objectsInput = null;
+      objectsOutput = null;
+      framesInput = null;
+      framesOutput = null;
+    }
+
+
+    /** Do we have a connection to the server? */
+    protected boolean isConnected()
+    {
+      return ( framed ? ( framesOutput != null ) : ( objectsOutput != null ) );
     }
 
 
@@ -178,7 +488,7 @@ public class pdEventTransporterTCPIPBridgeImpl extends pdActiveSystemObject
     //                                                        //
     ////////////////////////////////////////////////////////////
 
-    /** Start this thread. */
+    /** Start the reader and writer threads; the reader makes the first connection. */
     protected boolean _start()
     {
       if ( eventAccepter == null )
@@ -187,37 +497,77 @@ public class pdEventTransporterTCPIPBridgeImpl extends pdActiveSystemObject
           return false;
         }
 
-      this.getConnection();
+      createOutboundQueue();
+      createLossyLane();
+      threadStarted = true;
+
       thisThread = new Thread( this );
       thisThread.start();
-      threadStarted = true;
+
+      writerThread = new Thread( new pdEventTransporterTCPIPBridgeWriter( this ) );
+      writerThread.start();
 
       return true;
     }
 
 
-    /** Stop this thread. */
+    /**
+     * Stop the threads: close the queue and the socket to wake them from
+     * waiting on either, and wait for them to finish.
+     */
     protected boolean _stop()
     {
-      thisThread.stop();
       threadStarted = false;
+      outboundQueue.close();
 
-      // Close the socket.
+      // Break off reads and writes in progress. The connection lock may be
+      // held by a thread waiting to reconnect, so don't wait for it here.
+      Socket openSocket = socket;
       try
         {
-          socket.close();
-          socket = null;
+          if ( openSocket != null )
+            openSocket.close();
         }
-      catch ( Exception e )
+      catch ( IOException e )
         {
-          bbPrinter.bbError( "pdEventTransporterTCPIPBridgeImpl: could not stop: " + e.getMessage() + "\n" );
-          return false;
+          bbPrinter.bbDebug( "pdEventTransporterTCPIPBridgeImpl: error closing socket: " + e.getMessage() + "\n" );
+        }
+
+      joinThread( writerThread, "writer" );
+      joinThread( thisThread, "reader" );
+      thisThread = null;
+      writerThread = null;
+
+      synchronized ( connectionLock )
+        {
+          closeConnection();
         }
 
       return true;
     }
 
 
+    /** Wake a thread from any wait or sleep and wait for it to finish. */
+    protected void joinThread( Thread thread, String name )
+    {
+      if ( ( thread == null ) || ( thread == Thread.currentThread() ) )
+        return ;
+
+      thread.interrupt();
+      try
+        {
+          thread.join( STOP_JOIN_MILLIS );
+        }
+      catch ( InterruptedException e )
+        {
+          // Give up waiting.
+        }
+
+      if ( thread.isAlive() )
+        bbPrinter.bbWarn( "pdEventTransporterTCPIPBridgeImpl: " + name + " thread still running " + STOP_JOIN_MILLIS + " ms after stop\n" );
+    }
+
+
     /** Suspend this thread. */
     protected boolean _suspend()
     {
@@ -246,44 +596,407 @@ public class pdEventTransporterTCPIPBridgeImpl extends pdActiveSystemObject
     {
       pdBasicEvent event = null;
 
-      while ( true )
+      reconnect( connectionGeneration );
+
+      while ( threadStarted )
         {
           event = null;
 
+          int generation = connectionGeneration;
+
           try
             {
-              event = ( pdBasicEvent ) ( objectsInput.readObject() );
+              event = readEventFromServer();
             }
-          catch ( java.net.SocketException se )
+          catch ( InterruptedIOException iioe )
+            {
+              // Read timed out; nothing from the server lately.
+            }
+          catch ( IOException ioe )
             {
               // uh oh! lost socket to TCPIPBridge... try to get another one...
-              bbPrinter.bbNotice( "EventTransporter: Lost server connection! Trying to reconnect...\n" );
-              getConnection();
+              if ( threadStarted )
+                {
+                  bbPrinter.bbNotice( "EventTransporter: Lost server connection! Trying to reconnect...\n" );
+                  reconnect( generation );
+                }
             }
           catch ( Exception e )
             {
               e.printStackTrace();
             }
 
-          if ( event != null )
+          deliverEvent( event );
+
+          // Sleep now or else this thread will dominate and slow everything down A LOT.
+          try
+            {
+              Thread.sleep( 20 );
+            }
+          catch ( InterruptedException e )
             {
-              bbPrinter.bbDebug( "Transporter got event: " + event.getEventID() );
+              // Being stopped.
+            }
+        }
+    }
 
-              if ( eventAccepter != null )
-                eventAccepter.acceptEvent( event );
 
-              if ( isCollectingStats )
-                eventStats.countEventReceived( event );
+    /** Decode a frame for the receive pipeline and send it up. */
+    public void decodeRawEvent( Object sender, byte[] buffer, int offset, int length )
+    {
+      try
+        {
+          deliverEvent( eventCodec.decodeEvent( buffer, offset, length ) );
+        }
+      catch ( Exception e )
+        {
+          e.printStackTrace();
+        }
+    }
+
+
+    /** Send a received event up to the event accepter. */
+    protected void deliverEvent( pdBasicEvent event )
+    {
+      if ( event == null )
+        return ;
+
+      bbPrinter.bbDebug( "Transporter got event: " + event.getEventID() );
+
+      if ( eventAccepter != null )
+        eventAccepter.acceptEvent( event );
+
+      if ( isCollectingStats )
+        eventStats.countEventReceived( event );
+    }
+
+
+    /////////////////////////////
+    //                         //
+    //  Writer thread methods  //
+    //                         //
+    /////////////////////////////
+
+    /** Take events off the outbound queue and write them until stopped. */
+    protected void writeQueuedEvents()
+    {
+      while ( threadStarted )
+        {
+          long now = System.currentTimeMillis();
+
+          // Wait for an event: forever if nothing is buffered and there's no
+          // lossy lane, otherwise only until the buffer is due to be flushed
+          // or the lossy lane is due to be written.
+          long waitMillis = 0;
+          if ( unflushedEvents > 0 )
+            {
+              waitMillis = flushMillis - ( now - firstUnflushedTime );
+              if ( waitMillis <= 0 )
+                {
+                  flushOutput();
+                  continue;
+                }
             }
 
-          // Sleep now or else this thread will dominate and slow everything down A LOT.
+          if ( lossyLane != null )
+            {
+              long lossyWaitMillis = nextLossySendTime - now;
+              if ( ( lossyWaitMillis <= 0 ) && outboundQueue.isEmpty() )
+                {
+                  writeLossyLane();
+                  continue;
+                }
+
+              lossyWaitMillis = Math.max( 1, lossyWaitMillis );
+              waitMillis = ( waitMillis == 0 ) ? lossyWaitMillis : Math.min( waitMillis, lossyWaitMillis );
+            }
+
+          pdBasicEvent event = outboundQueue.take( waitMillis );
+          if ( event == null )
+            continue;
+
+          writeEvent( event );
+
+          if ( shouldFlushAfter( event ) )
+            flushOutput();
+        }
+    }
+
+
+    /** Write the newest change held for every object in the lossy lane. */
+    protected void writeLossyLane()
+    {
+      nextLossySendTime = System.currentTimeMillis() + lossyIntervalMillis;
+
+      Vector events = lossyLane.drain();
+      for ( int i = 0; i < events.size(); i++ )
+        {
+          pdBasicEvent event = ( pdBasicEvent ) events.elementAt( i );
+          writeEvent( event );
+          lossyEventsSent++;
+
+          if ( shouldFlushAfter( event ) )
+            flushOutput();
+        }
+    }
+
+
+    /** Does the flush policy say to flush after writing this event? */
+    protected boolean shouldFlushAfter( pdBasicEvent event )
+    {
+      if ( unflushedEvents == 0 )
+        return false;
+
+      if ( unflushedBytes >= flushBytes )
+        return true;
+
+      switch ( flushPolicy )
+        {
+          case FLUSH_AFTER_RELIABLE:
+            return event.getTransportReliably();
+          case FLUSH_WHEN_IDLE:
+            return ( outboundQueue.isEmpty() && ( ( lossyLane == null ) || lossyLane.isEmpty() ) );
+          default:
+            return false;
+        }
+    }
+
+
+    /**
+     * Send everything in the output buffer to the server now. If the
+     * connection is lost, the unflushed reliable events stay put; the
+     * writer thread tries again on the new connection.
+     */
+    protected void flushOutput()
+    {
+      if ( unflushedEvents == 0 )
+        return ;
+
+      int generation = connectionGeneration;
+
+      try
+        {
+          if ( generation != unflushedGeneration )
+            rewriteUnflushed( generation );
+
+          OutputStream output = ( framed ? ( OutputStream ) framesOutput : ( OutputStream ) objectsOutput );
+          if ( output == null )
+            throw new SocketException( "not connected" );
+          output.flush();
+        }
+      catch ( IOException ioe )
+        {
+          bbPrinter.bbNotice( "EventTransporter: Lost server connection! Trying to reconnect...\n" );
+          reconnect( generation );
+          return ;
+        }
+
+      flushBatchSizes.record( unflushedEvents );
+      flushLatencies.record( System.currentTimeMillis() - firstUnflushedTime );
+      unflushedEvents = 0;
+      unflushedBytes = 0;
+      unflushedReliable.removeAllElements();
+    }
+
+
+    /**
+     * The connection the unflushed events were written on is gone: write
+     * the reliable ones again on the current connection.
+     */
+    protected void rewriteUnflushed( int generation ) throws IOException
+    {
+      Vector events = unflushedReliable;
+      unflushedReliable = new Vector();
+      unflushedGeneration = generation;
+      unflushedEvents = 0;
+      unflushedBytes = 0;
+
+      for ( int i = 0; i < events.size(); i++ )
+        {
+          pdBasicEvent event = ( pdBasicEvent ) events.elementAt( i );
           try
             {
-              Thread.sleep( 20 );
+              writeEventToServer( event );
+            }
+          catch ( IOException ioe )
+            {
+              // Lost this connection too; keep them all for the next one.
+              unflushedReliable = events;
+              throw ioe;
             }
           catch ( Exception e )
             {
               e.printStackTrace();
+              continue;
+            }
+          unflushedReliable.addElement( event );
+          rewrittenEvents++;
+        }
+    }
+
+
+    /** Note that an event of this many bytes went into the output buffer. */
+    protected void countUnflushed( int length )
+    {
+      if ( unflushedEvents == 0 )
+        firstUnflushedTime = System.currentTimeMillis();
+      unflushedEvents++;
+      unflushedBytes += length;
+    }
+
+
+    /**
+     * Read one event from the server, in whichever framing we use. With a
+     * receive pipeline, frames go to it to be decoded and null comes back.
+     */
+    protected pdBasicEvent readEventFromServer() throws Exception
+    {
+      if ( framed )
+        {
+          DataInputStream input = framesInput;
+          if ( input == null )
+            throw new SocketException( "not connected" );
+
+          int length = input.readInt();
+          if ( ( length <= 0 ) || ( length > maxFrameBytes ) )
+            throw new IOException( "EventTransporter: bad frame length " + length );
+
+          byte[] frame = bufferPool.getBuffer( length );
+          try
+            {
+              input.readFully( frame, 0, length );
+            }
+          catch ( IOException e )
+            {
+              bufferPool.returnBuffer( frame );
+              throw e;
+            }
+          framesRead++;
+          bytesRead += length;
+
+          // The pipeline gives the frame back to the pool once decoded.
+          if ( receivePipeline != null )
+            {
+              receivePipeline.submit( this, this, frame, 0, length );
+              return null;
+            }
+
+          try
+            {
+              return eventCodec.decodeEvent( frame, 0, length );
+            }
+          finally
+            {
+              bufferPool.returnBuffer( frame );
+            }
+        }
+
+      ObjectInputStream input = objectsInput;
+      if ( input == null )
+        throw new SocketException( "not connected" );
+
+      Object received = input.readObject();
+
+      // With the compact codec events come across as encoded byte
+      // arrays; otherwise, like the server's own transport events, as
+      // objects.
+      if ( received instanceof byte[] )
+        {
+          byte[] eventBuffer = ( byte[] ) received;
+          framesRead++;
+          bytesRead += eventBuffer.length;
+          return eventCodec.decodeEvent( eventBuffer, 0, eventBuffer.length );
+        }
+
+      return ( pdBasicEvent ) received;
+    }
+
+
+    /** Write one event to the server, in whichever framing we use. */
+    protected void writeEventToServer( pdBasicEvent event ) throws IOException
+    {
+      if ( framed )
+        {
+          DataOutputStream output = framesOutput;
+          if ( output == null )
+            throw new SocketException( "not connected" );
+
+          encodeBuffer.reset();
+          eventCodec.encodeEvent( event, encodeBuffer );
+          output.writeInt( encodeBuffer.size() );
+          encodeBuffer.writeTo( output );
+          framesWritten++;
+          bytesWritten += encodeBuffer.size();
+          countUnflushed( encodeBuffer.size() + 4 );
+          return ;
+        }
+
+      ObjectOutputStream output = objectsOutput;
+      if ( output == null )
+        throw new SocketException( "not connected" );
+
+      // The server reads transport events itself, so they stay objects,
+      // and so do other events unless a codec other than serialization
+      // was asked for; the object stream serializes them anyway, and
+      // the server and older clients expect to see them as objects.
+      if ( ( event instanceof pdTransportSendOnlyEvent ) ||
+           ( event instanceof pdTransportSendAndReceiveEvent ) ||
+           ( eventCodec instanceof pdEventCodecSerializationImpl ) )
+        {
+          output.writeObject( event );
+          countUnflushed( 0 );
+        }
+      else
+        {
+          encodeBuffer.reset();
+          eventCodec.encodeEvent( event, encodeBuffer );
+          output.writeObject( encodeBuffer.toByteArray() );
+          framesWritten++;
+          bytesWritten += encodeBuffer.size();
+          countUnflushed( encodeBuffer.size() );
+        }
+
+      // Forget everything written so far, on both ends; otherwise the
+      // stream's handle table keeps every event ever sent.
+      output.reset();
+    }
+
+
+    /**
+     * Write one event to the server, reconnecting and trying again as
+     * often as needed. Gives up only if the transporter is stopped.
+     */
+    protected void writeEvent( pdBasicEvent event )
+    {
+      while ( threadStarted )
+        {
+          int generation = connectionGeneration;
+
+          try
+            {
+              // Events buffered on a lost connection go first.
+              if ( generation != unflushedGeneration )
+                rewriteUnflushed( generation );
+
+              writeEventToServer( event );
+              if ( event.getTransportReliably() )
+                unflushedReliable.addElement( event );
+
+              if ( isCollectingStats )
+                eventStats.countEventSent( event );
+              return ;
+            }
+          catch ( IOException ioe )
+            {
+              // uh oh! lost socket to TCPIPBridge... get another one and try again.
+              bbPrinter.bbNotice( "EventTransporter: Lost server connection! Trying to reconnect...\n" );
+              reconnect( generation );
+            }
+          catch ( Exception e )
+            {
+              // Can't be written at all; don't try again.
+              e.printStackTrace();
+              return ;
             }
         }
     }
@@ -323,7 +1036,10 @@ public class pdEventTransporterTCPIPBridgeImpl extends pdActiveSystemObject
     }
 
 
-    /** Send an event to the network. */
+    /**
+     * Send an event to the network. The event just goes on the outbound
+     * queue; the writer thread does the rest.
+     */
     public void sendEvent( pdBasicEvent event )
     {
       // Don't send null events...
@@ -331,34 +1047,120 @@ public class pdEventTransporterTCPIPBridgeImpl extends pdActiveSystemObject
         return ;
 
       // Ignore this event if this object hasn't been started yet.
-      if ( socket == null )
+      if ( !threadStarted )
         return ;
 
-      // Don't send unreliably events in a lame effort to keep
+      pdEventCoalescer lane = lossyLane;
+
+      // Unreliable object changes go to the lossy lane, if there is one.
+      // Don't send other unreliable events in a lame effort to keep
       // traffic at a reasonable level for TCP/IP.
       if ( event.getTransportReliably() == false )
-        return ;
-
-      // Write out the object to the output stream.
-      try
         {
-          if ( objectsOutput != null )
-            objectsOutput.writeObject( event );
+          if ( lane != null )
+            lane.offer( event );
+          return ;
         }
-      catch ( java.net.SocketException se )
+
+      // Changes held in the lossy lane for this object are older than
+      // this event, so they go ahead of it.
+      if ( lane != null )
         {
-          // uh oh! lost socket to TCPIPBridge... receiving thread will try to create a new one
-          bbPrinter.bbNotice( "EventTransporter: Lost server connection! Trying to reconnect...\n" );
-          getConnection();
-          sendEvent( event );
-          if ( isCollectingStats )
-            eventStats.countEventSent( event );
+          Vector olderEvents = lane.drainTarget( event.getTargetID() );
+          for ( int i = 0; i < olderEvents.size(); i++ )
+            {
+              pdBasicEvent olderEvent = ( pdBasicEvent ) olderEvents.elementAt( i );
+              if ( !outboundQueue.put( olderEvent ) && threadStarted )
+                bbPrinter.bbWarn( "EventTransporter: outbound queue full, dropped event " + olderEvent.getEventID() + "\n" );
+            }
         }
-      catch ( Exception e )
-        {
-          //e.printStackTrace();
 
-        }
+      if ( !outboundQueue.put( event ) && threadStarted )
+        bbPrinter.bbWarn( "EventTransporter: outbound queue full, dropped reliable event " + event.getEventID() + "\n" );
+    }
+
+
+    /** Get the number of reliable events written again after losing a connection. */
+    public long getRewrittenEventCount()
+    {
+      return rewrittenEvents;
+    }
+
+
+    /** Get the outbound event queue. */
+    public pdBoundedEventQueue getOutboundQueue()
+    {
+      return outboundQueue;
+    }
+
+
+    /** Get the lossy lane, or null if it's off. */
+    public pdEventCoalescer getLossyLane()
+    {
+      return lossyLane;
+    }
+
+
+    /** Number of events written from the lossy lane. */
+    public long getLossyEventsSent()
+    {
+      return lossyEventsSent;
+    }
+
+
+    /** Histogram of events per flush of the output buffer. */
+    public pdEventTransporterHistogram getFlushBatchSizes()
+    {
+      return flushBatchSizes;
+    }
+
+
+    /** Histogram of milliseconds from the first buffered event to its flush. */
+    public pdEventTransporterHistogram getFlushLatencies()
+    {
+      return flushLatencies;
+    }
+
+
+    /** Number of events written to the server. */
+    public long getFramesWritten()
+    {
+      return framesWritten;
+    }
+
+
+    /** Number of encoded event bytes written to the server. */
+    public long getBytesWritten()
+    {
+      return bytesWritten;
+    }
+
+
+    /** Number of events read from the server. */
+    public long getFramesRead()
+    {
+      return framesRead;
+    }
+
+
+    /** Number of encoded event bytes read from the server. */
+    public long getBytesRead()
+    {
+      return bytesRead;
+    }
+
+
+    /** Set the codec used to encode and decode events. */
+    public void setEventCodec( pdEventCodec eventCodec )
+    {
+      this.eventCodec = eventCodec;
+    }
+
+
+    /** Get the codec used to encode and decode events. */
+    public pdEventCodec getEventCodec()
+    {
+      return eventCodec;
     }
 
 
@@ -384,5 +1186,3 @@ public class pdEventTransporterTCPIPBridgeImpl extends pdActiveSystemObject
       return eventStats;
     }
   }
-
-
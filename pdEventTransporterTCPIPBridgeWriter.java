@@ -0,0 +1,28 @@
+package pdEventTransportSubsystem;
+
+
+/**
+ * The writer thread of a TCP/IP bridge transporter: takes events off
+ * the transporter's outbound queue and writes them to the server.
+ *
+ * @author BARS Team
+ */
+public class pdEventTransporterTCPIPBridgeWriter implements Runnable
+  {
+    /** The transporter we write for. */
+    protected pdEventTransporterTCPIPBridgeImpl transporter = null;
+
+
+    /** Make a new writer for this transporter. */
+    public pdEventTransporterTCPIPBridgeWriter( pdEventTransporterTCPIPBridgeImpl transporter )
+    {
+      this.transporter = transporter;
+    }
+
+
+    /** Write queued events until the transporter stops. */
+    public void run()
+    {
+      transporter.writeQueuedEvents();
+    }
+  }
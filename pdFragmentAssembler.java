@@ -0,0 +1,309 @@
+package pdEventTransportSubsystem;
+
+import java.util.*;
+
+import bamboo.bbPrinter;
+
+
+/**
+ * Puts messages back together from fragments, keyed by sender and
+ * message ID, so each sender can have several messages in progress.
+ * Buffers come from a pdByteArrayPool and are sized to the message,
+ * not to the largest possible message.
+ * <P>
+ * Partial messages that haven't had a fragment for timeoutMillis are
+ * thrown away, so a lost final fragment doesn't hold memory forever.
+ * The buffers of all partial messages together must fit in
+ * budgetBytes; to make room for a new message the least recently
+ * updated partial messages go first.
+ * <P>
+ * Completed messages are handed back to the caller, who must call
+ * release() once done with them.
+ *
+ * @author BARS Team
+ */
+public class pdFragmentAssembler
+  {
+    /** Partial messages by pdFragmentKey. */
+    protected Hashtable partialMessages = new Hashtable();
+
+    /** Where message buffers come from. */
+    protected pdByteArrayPool bufferPool = null;
+
+    /** Longest a partial message may go without a fragment, in milliseconds. */
+    protected long timeoutMillis = 30000;
+
+    /** Most bytes all partial message buffers together may hold. */
+    protected long budgetBytes = 4194304;
+
+    /** Largest message we'll put together. */
+    protected int maxMessageSize = 65536;
+
+    /** Bytes of buffer held by partial messages. */
+    protected long bytesInUse = 0;
+
+    /** When we last looked for stale partial messages, in milliseconds. */
+    protected long lastSweepTime = 0;
+
+    /** Number of fragments added. */
+    protected long fragmentsReceived = 0;
+
+    /** Number of messages completed. */
+    protected long messagesCompleted = 0;
+
+    /** Number of partial messages thrown away for going stale. */
+    protected long messagesTimedOut = 0;
+
+    /** Number of partial messages thrown away to stay within the budget. */
+    protected long messagesEvicted = 0;
+
+    /** Number of partial messages thrown away by the caller. */
+    protected long messagesDiscarded = 0;
+
+    /** Number of fragments refused: bad offset or size, or no room. */
+    protected long fragmentsRejected = 0;
+
+    /** Bytes copied from fragments into message buffers. */
+    protected long bytesCopied = 0;
+
+
+    /** Make a new assembler. */
+    public pdFragmentAssembler( pdByteArrayPool bufferPool, long timeoutMillis, long budgetBytes, int maxMessageSize )
+    {
+      this.bufferPool = bufferPool;
+      this.timeoutMillis = timeoutMillis;
+      this.budgetBytes = budgetBytes;
+      this.maxMessageSize = maxMessageSize;
+    }
+
+
+    /**
+     * Add a fragment: dataLength bytes of data from dataOffset, which go
+     * at offset in the message. bufferSize is how big the message could
+     * be (used only when this is the first fragment we've seen of it), and
+     * messageLength its exact length if known, otherwise -1. Returns the
+     * message if this fragment completed it, otherwise null.
+     */
+    public synchronized pdPartialMessage addFragment( Object sender, long messageID, int bufferSize,
+                                                      int offset, byte[] data, int dataOffset, int dataLength,
+                                                      int messageLength )
+    {
+      long now = System.currentTimeMillis();
+      sweep( now );
+      fragmentsReceived++;
+
+      pdFragmentKey key = new pdFragmentKey( sender, messageID );
+      pdPartialMessage message = ( pdPartialMessage ) partialMessages.get( key );
+
+      if ( message == null )
+        {
+          if ( ( bufferSize <= 0 ) || ( bufferSize > maxMessageSize ) || !makeRoomFor( bufferSize ) )
+            {
+              bbPrinter.bbDebug( "pdFragmentAssembler: no room for message " + messageID + " of " + bufferSize + " bytes from " + sender + "\n" );
+              fragmentsRejected++;
+              return null;
+            }
+
+          message = new pdPartialMessage( key, bufferPool.getBuffer( bufferSize ), now );
+          partialMessages.put( key, message );
+          bytesInUse += message.buffer.length;
+        }
+
+      if ( ( offset < 0 ) || ( dataLength < 0 ) || ( ( offset + dataLength ) > message.buffer.length ) ||
+           ( ( messageLength >= 0 ) && ( messageLength > message.buffer.length ) ) )
+        {
+          bbPrinter.bbDebug( "pdFragmentAssembler: fragment at " + offset + " doesn't fit message " + messageID + " from " + sender + "\n" );
+          fragmentsRejected++;
+          return null;
+        }
+
+      System.arraycopy( data, dataOffset, message.buffer, offset, dataLength );
+      bytesCopied += dataLength;
+      message.bytesReceived += dataLength;
+      message.lastUpdateTime = now;
+      if ( messageLength >= 0 )
+        message.length = messageLength;
+
+      if ( !message.isComplete() )
+        return null;
+
+      partialMessages.remove( key );
+      bytesInUse -= message.buffer.length;
+      messagesCompleted++;
+      return message;
+    }
+
+
+    /** Give a completed message's buffer back to the pool. */
+    public void release( pdPartialMessage message )
+    {
+      bufferPool.returnBuffer( message.buffer );
+      message.buffer = null;
+    }
+
+
+    /** Throw away a partial message, if we have it. */
+    public synchronized void discard( Object sender, long messageID )
+    {
+      pdPartialMessage message = ( pdPartialMessage ) partialMessages.get( new pdFragmentKey( sender, messageID ) );
+      if ( message != null )
+        {
+          remove( message );
+          messagesDiscarded++;
+        }
+    }
+
+
+    /** Throw away every partial message. */
+    public synchronized void clear()
+    {
+      Enumeration e = partialMessages.elements();
+      while ( e.hasMoreElements() )
+        bufferPool.returnBuffer( ( ( pdPartialMessage ) e.nextElement() ).buffer );
+
+      partialMessages.clear();
+      bytesInUse = 0;
+    }
+
+
+    /** Throw away stale partial messages, looking at most four times per timeout. */
+    protected void sweep( long now )
+    {
+      if ( ( now - lastSweepTime ) < ( timeoutMillis / 4 ) )
+        return ;
+      lastSweepTime = now;
+
+      Vector stale = new Vector();
+      Enumeration e = partialMessages.elements();
+      while ( e.hasMoreElements() )
+        {
+          pdPartialMessage message = ( pdPartialMessage ) e.nextElement();
+          if ( ( now - message.lastUpdateTime ) > timeoutMillis )
+            stale.addElement( message );
+        }
+
+      for ( int i = 0; i < stale.size(); i++ )
+        {
+          pdPartialMessage message = ( pdPartialMessage ) stale.elementAt( i );
+          bbPrinter.bbDebug( "pdFragmentAssembler: message " + message.key.getMessageID() + " from " + message.key.getSender() + " timed out\n" );
+          remove( message );
+          messagesTimedOut++;
+        }
+    }
+
+
+    /**
+     * Throw away least recently updated partial messages until bufferSize
+     * more bytes fit in the budget. Returns false if they never will.
+     */
+    protected boolean makeRoomFor( int bufferSize )
+    {
+      if ( bufferSize > budgetBytes )
+        return false;
+
+      while ( ( bytesInUse + bufferSize ) > budgetBytes )
+        {
+          pdPartialMessage oldest = null;
+          Enumeration e = partialMessages.elements();
+          while ( e.hasMoreElements() )
+            {
+              pdPartialMessage message = ( pdPartialMessage ) e.nextElement();
+              if ( ( oldest == null ) || ( message.lastUpdateTime < oldest.lastUpdateTime ) )
+                oldest = message;
+            }
+
+          if ( oldest == null )
+            return false;
+
+          bbPrinter.bbDebug( "pdFragmentAssembler: evicting message " + oldest.key.getMessageID() + " from " + oldest.key.getSender() + " to stay within budget\n" );
+          remove( oldest );
+          messagesEvicted++;
+        }
+
+      return true;
+    }
+
+
+    /** Take a partial message out and give its buffer back. */
+    protected void remove( pdPartialMessage message )
+    {
+      partialMessages.remove( message.key );
+      bytesInUse -= message.buffer.length;
+      bufferPool.returnBuffer( message.buffer );
+      message.buffer = null;
+    }
+
+
+    /** Number of partial messages in progress. */
+    public synchronized int getPartialMessageCount()
+    {
+      return partialMessages.size();
+    }
+
+
+    /** Bytes of buffer held by partial messages. */
+    public synchronized long getBytesInUse()
+    {
+      return bytesInUse;
+    }
+
+
+    /** Number of fragments added. */
+    public synchronized long getFragmentsReceived()
+    {
+      return fragmentsReceived;
+    }
+
+
+    /** Number of messages completed. */
+    public synchronized long getMessagesCompleted()
+    {
+      return messagesCompleted;
+    }
+
+
+    /** Number of partial messages thrown away for going stale. */
+    public synchronized long getMessagesTimedOut()
+    {
+      return messagesTimedOut;
+    }
+
+
+    /** Number of partial messages thrown away to stay within the budget. */
+    public synchronized long getMessagesEvicted()
+    {
+      return messagesEvicted;
+    }
+
+
+    /** Number of partial messages thrown away by the caller. */
+    public synchronized long getMessagesDiscarded()
+    {
+      return messagesDiscarded;
+    }
+
+
+    /** Number of fragments refused. */
+    public synchronized long getFragmentsRejected()
+    {
+      return fragmentsRejected;
+    }
+
+
+    /** Bytes copied from fragments into message buffers. */
+    public synchronized long getBytesCopied()
+    {
+      return bytesCopied;
+    }
+
+
+    /** Print the counters. */
+    public synchronized String toString()
+    {
+      return "pdFragmentAssembler: " + partialMessages.size() + " partial (" + bytesInUse + " bytes), " +
+             fragmentsReceived + " fragments, " + messagesCompleted + " completed, " +
+             messagesTimedOut + " timed out, " + messagesEvicted + " evicted, " +
+             messagesDiscarded + " discarded, " + fragmentsRejected + " fragments rejected, " +
+             bytesCopied + " bytes copied";
+    }
+  }
@@ -0,0 +1,57 @@
+package pdEventTransportSubsystem;
+
+
+/**
+ * Hashtable key for a message being reassembled from fragments: the
+ * sender and the sender's ID for the message.
+ *
+ * @author BARS Team
+ */
+public class pdFragmentKey
+  {
+    /** Who sent the message. */
+    protected Object sender = null;
+
+    /** The sender's ID for the message. */
+    protected long messageID = 0;
+
+
+    /** Make a new key. */
+    public pdFragmentKey( Object sender, long messageID )
+    {
+      this.sender = sender;
+      this.messageID = messageID;
+    }
+
+
+    /** Get the sender. */
+    public Object getSender()
+    {
+      return sender;
+    }
+
+
+    /** Get the message ID. */
+    public long getMessageID()
+    {
+      return messageID;
+    }
+
+
+    /** Same sender and message ID? */
+    public boolean equals( Object other )
+    {
+      if ( !( other instanceof pdFragmentKey ) )
+        return false;
+
+      pdFragmentKey otherKey = ( pdFragmentKey ) other;
+      return ( ( messageID == otherKey.messageID ) && sender.equals( otherKey.sender ) );
+    }
+
+
+    /** Hash of sender and message ID. */
+    public int hashCode()
+    {
+      return ( sender.hashCode() * 31 ) + ( int ) ( messageID ^ ( messageID >>> 32 ) );
+    }
+  }
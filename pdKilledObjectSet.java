@@ -0,0 +1,169 @@
+package pdObjectSubsystem;
+
+import pdEventTransportSubsystem.*;
+
+
+/**
+ * IDs of distributed objects we've killed, so late joiners can be told
+ * about deaths they missed. Each ID is kept for retentionMillis after
+ * the kill, and at most maxSize IDs are kept, so the death notices
+ * replayed for each SendAllObjects request stay bounded.
+ * <P>
+ * Lookups go through a pdLongHashMap of ID to kill time; a first-in,
+ * first-out ring of IDs and kill times decides what to forget. A ring
+ * entry whose kill time no longer matches the map -- the object came
+ * back to life, maybe to be killed again -- is just skipped.
+ *
+ * @author BARS Team
+ */
+public class pdKilledObjectSet
+  {
+    /** Kill time of each killed ID. */
+    protected pdLongHashMap killTimes = null;
+
+    /** Ring of killed IDs, oldest first from head. */
+    protected long[] ringIDs = null;
+
+    /** Kill time of each ID in the ring, in milliseconds. */
+    protected long[] ringTimes = null;
+
+    /** Index of the oldest entry in the ring. */
+    protected int head = 0;
+
+    /** Number of entries in the ring. */
+    protected int count = 0;
+
+    /** How long to keep an ID, in milliseconds. */
+    protected long retentionMillis = 3600000;
+
+    /** Most IDs we'll keep. */
+    protected int maxSize = 10000;
+
+    /** Number of IDs forgotten early because we hit maxSize. */
+    protected long forcedEvictionCount = 0;
+
+
+    /** Make a new set keeping IDs for retentionMillis, up to maxSize of them. */
+    public pdKilledObjectSet( long retentionMillis, int maxSize )
+    {
+      this.retentionMillis = retentionMillis;
+      this.maxSize = Math.max( 1, maxSize );
+      killTimes = new pdLongHashMap( 64 );
+      ringIDs = new long[ 64 ];
+      ringTimes = new long[ 64 ];
+    }
+
+
+    /** Remember that this object was killed. */
+    public synchronized void add( long objectID )
+    {
+      long now = System.currentTimeMillis();
+      expire( now );
+
+      if ( killTimes.containsKey( objectID ) )
+        return ;
+
+      while ( killTimes.size() >= maxSize )
+        {
+          if ( removeOldest() )
+            forcedEvictionCount++;
+        }
+
+      if ( count == ringIDs.length )
+        resize( ringIDs.length * 2 );
+
+      int tail = ( head + count ) % ringIDs.length;
+      ringIDs[ tail ] = objectID;
+      ringTimes[ tail ] = now;
+      count++;
+      killTimes.put( objectID, now );
+    }
+
+
+    /** Was this object killed, within the retention window? */
+    public synchronized boolean contains( long objectID )
+    {
+      long killTime = killTimes.get( objectID, -1 );
+      return ( ( killTime >= 0 ) && ( ( System.currentTimeMillis() - killTime ) <= retentionMillis ) );
+    }
+
+
+    /** Forget this object, since it's alive again. */
+    public synchronized void remove( long objectID )
+    {
+      killTimes.remove( objectID );
+    }
+
+
+    /** Get the IDs killed within the retention window, oldest first. */
+    public synchronized long[] toArray()
+    {
+      expire( System.currentTimeMillis() );
+
+      long[] result = new long[ killTimes.size() ];
+      int j = 0;
+      for ( int i = 0; ( i < count ) && ( j < result.length ); i++ )
+        {
+          int slot = ( head + i ) % ringIDs.length;
+          if ( killTimes.get( ringIDs[ slot ], -1 ) == ringTimes[ slot ] )
+            result[ j++ ] = ringIDs[ slot ];
+        }
+
+      return result;
+    }
+
+
+    /** Number of IDs kept. */
+    public synchronized int size()
+    {
+      return killTimes.size();
+    }
+
+
+    /** Number of IDs forgotten early because the set was at maxSize. */
+    public synchronized long getForcedEvictionCount()
+    {
+      return forcedEvictionCount;
+    }
+
+
+    /** Forget IDs killed longer ago than the retention window. */
+    protected void expire( long now )
+    {
+      while ( ( count > 0 ) && ( ( now - ringTimes[ head ] ) > retentionMillis ) )
+        removeOldest();
+    }
+
+
+    /**
+     * Forget the oldest ring entry, and its ID if the entry is still
+     * current. Returns true if an ID was forgotten.
+     */
+    protected boolean removeOldest()
+    {
+      boolean current = ( killTimes.get( ringIDs[ head ], -1 ) == ringTimes[ head ] );
+      if ( current )
+        killTimes.remove( ringIDs[ head ] );
+      head = ( head + 1 ) % ringIDs.length;
+      count--;
+      return current;
+    }
+
+
+    /** Copy the ring into arrays of a new size. */
+    protected void resize( int newSize )
+    {
+      long[] newIDs = new long[ newSize ];
+      long[] newTimes = new long[ newSize ];
+      for ( int i = 0; i < count; i++ )
+        {
+          int slot = ( head + i ) % ringIDs.length;
+          newIDs[ i ] = ringIDs[ slot ];
+          newTimes[ i ] = ringTimes[ slot ];
+        }
+
+      ringIDs = newIDs;
+      ringTimes = newTimes;
+      head = 0;
+    }
+  }
@@ -0,0 +1,171 @@
+package pdEventTransportSubsystem;
+
+import java.io.*;
+import java.util.*;
+
+import inria.net.lrmp.*;
+
+
+/**
+ * Output stream that writes an event straight into the data area of
+ * LRMP packets, starting a new packet whenever one fills up, so an
+ * encoded event is copied once, into the packets that carry it. Call
+ * finish() once the event is written to fill in the fragment headers.
+ * <P>
+ * Packets can't be reused from one event to the next, because LRMP
+ * keeps sent packets around to retransmit them; reset() just lets go
+ * of them.
+ *
+ * @author BARS Team
+ */
+public class pdLRMPFragmentOutputStream extends OutputStream
+  {
+    /** The transporter whose packets we're filling. */
+    protected pdEventTransporterLRMPImpl transporter = null;
+
+    /** Packets filled so far, in order. */
+    protected Vector packets = new Vector();
+
+    /** The packet being filled. */
+    protected LrmpPacket currentPacket = null;
+
+    /** Bytes of event in the current packet. */
+    protected int currentLength = 0;
+
+    /** Bytes of event the current packet can hold. */
+    protected int currentCapacity = 0;
+
+    /** Bytes of event written. */
+    protected int totalLength = 0;
+
+    /** Most bytes of event we'll take. */
+    protected int maxLength = 0;
+
+    /** Bytes copied into packets from the encoder's own buffers. */
+    protected int bytesCopied = 0;
+
+
+    /** Make a new stream filling packets for this transporter. */
+    public pdLRMPFragmentOutputStream( pdEventTransporterLRMPImpl transporter )
+    {
+      this.transporter = transporter;
+    }
+
+
+    /** Get ready for a new event of no more than maxLength bytes. */
+    public void reset( int maxLength )
+    {
+      this.maxLength = maxLength;
+      packets.removeAllElements();
+      currentPacket = null;
+      currentLength = 0;
+      currentCapacity = 0;
+      totalLength = 0;
+      bytesCopied = 0;
+    }
+
+
+    /** Write one byte. */
+    public void write( int b ) throws IOException
+    {
+      if ( currentLength == currentCapacity )
+        nextPacket( 1 );
+
+      currentPacket.getDataBuffer()[ currentPacket.getOffset() + pdEventTransporterLRMPImpl.FRAGMENT_HEADER_SIZE + currentLength ] = ( byte ) b;
+      currentLength++;
+      totalLength++;
+    }
+
+
+    /** Write length bytes of buffer from offset. */
+    public void write( byte[] buffer, int offset, int length ) throws IOException
+    {
+      while ( length > 0 )
+        {
+          if ( currentLength == currentCapacity )
+            nextPacket( length );
+
+          int chunk = Math.min( length, currentCapacity - currentLength );
+          System.arraycopy( buffer, offset,
+                            currentPacket.getDataBuffer(), currentPacket.getOffset() + pdEventTransporterLRMPImpl.FRAGMENT_HEADER_SIZE + currentLength,
+                            chunk );
+          currentLength += chunk;
+          totalLength += chunk;
+          bytesCopied += chunk;
+          offset += chunk;
+          length -= chunk;
+        }
+    }
+
+
+    /** Close off the current packet and start a new one, unless that takes us past maxLength. */
+    protected void nextPacket( int wanted ) throws IOException
+    {
+      if ( ( totalLength + wanted ) > maxLength )
+        throw new IOException( "event is larger than " + maxLength + " bytes" );
+
+      if ( currentPacket != null )
+        currentPacket.setDataLength( pdEventTransporterLRMPImpl.FRAGMENT_HEADER_SIZE + currentLength );
+
+      currentPacket = new LrmpPacket();
+      currentLength = 0;
+      currentCapacity = transporter.getFragmentDataLength( currentPacket );
+      packets.addElement( currentPacket );
+    }
+
+
+    /**
+     * Fill in every packet's header for message messageID and return
+     * the packets, ready to send in order.
+     */
+    public Vector finish( int messageID )
+    {
+      if ( currentPacket == null )
+        {
+          currentPacket = new LrmpPacket();
+          packets.addElement( currentPacket );
+        }
+      currentPacket.setDataLength( pdEventTransporterLRMPImpl.FRAGMENT_HEADER_SIZE + currentLength );
+
+      int fragmentOffset = 0;
+      for ( int i = 0; i < packets.size(); i++ )
+        {
+          LrmpPacket pack = ( LrmpPacket ) packets.elementAt( i );
+          byte[] packetBuffer = pack.getDataBuffer();
+          int offset = pack.getOffset();
+
+          packetBuffer[ offset ] = pdEventTransporterLRMPImpl.FRAGMENT_HEADER_VERSION;
+          pdEventTransporterLRMPImpl.writeInt( packetBuffer, offset + 1, messageID );
+          pdEventTransporterLRMPImpl.writeInt( packetBuffer, offset + 5, fragmentOffset );
+          pdEventTransporterLRMPImpl.writeInt( packetBuffer, offset + 9, totalLength );
+          fragmentOffset += pack.getDataLength() - pdEventTransporterLRMPImpl.FRAGMENT_HEADER_SIZE;
+        }
+
+      return packets;
+    }
+
+
+    /** Get the number of bytes of event written. */
+    public int getTotalLength()
+    {
+      return totalLength;
+    }
+
+
+    /**
+     * Get the number of bytes copied into packets from buffers the
+     * encoder wrote first, as opposed to bytes it wrote one at a time
+     * straight into the packets.
+     */
+    public int getBytesCopied()
+    {
+      return bytesCopied;
+    }
+
+
+    /** Get the number of packets filled. */
+    public int getPacketCount()
+    {
+      return packets.size();
+    }
+  }
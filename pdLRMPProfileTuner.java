@@ -0,0 +1,247 @@
+package pdEventTransportSubsystem;
+
+import inria.net.lrmp.*;
+
+import bamboo.bbPrinter;
+
+
+/**
+ * Adjusts an LRMP transporter's send rate from how our own sends are
+ * doing: backs the rate off sharply when they're being held up, and
+ * raises it a step at a time while we're offering more than the rate
+ * lets through and nothing is held up. Rates go into the transporter's
+ * LrmpProfile in place; the window sizes are kept in step with the
+ * rate and take effect the next time LRMP is started.
+ * <P>
+ * LRMP doesn't tell us about the NAKs it gets or the packets it sends
+ * again, so we time them instead: each tick we send a heartbeat, which
+ * LRMP queues and repairs in order behind our events. How much longer
+ * than the quickest one its acknowledgement takes is the delay our
+ * sends are seeing, and more than a tick of it means back off. Loss
+ * other nodes report about their senders plays no part.
+ * <P>
+ * We can't see LRMP's own send queue either, so the backlog is
+ * estimated: bytes offered beyond what the current rate would have
+ * sent since the last tick pile up, and what the rate allows drains
+ * them.
+ *
+ * @author BARS Team
+ */
+public class pdLRMPProfileTuner implements Runnable
+  {
+    /** The profile we adjust. */
+    protected LrmpProfile profile = null;
+
+    /** The transporter whose heartbeats we time. */
+    protected pdEventTransporterLRMPImpl transporter = null;
+
+    /** Milliseconds between adjustments. */
+    protected long intervalMillis = 1000;
+
+    /** Lowest rate we'll go to, in kbits/sec. */
+    protected int rateFloor = 8;
+
+    /** Highest rate we'll go to, in kbits/sec. */
+    protected int rateCeiling = 1024;
+
+    /** Kbits/sec added per tick when we want more. */
+    protected int rateStep = 16;
+
+    /** Seconds of traffic at the current rate the windows should hold. */
+    protected int windowSeconds = 16;
+
+    /** Smallest window, in kilobytes. */
+    protected int minWindowSize = 1024;
+
+    /** Is the tuning thread running? */
+    protected boolean running = false;
+
+    /** The tuning thread. */
+    protected Thread tuneThread = null;
+
+    /** Bytes offered since the last tick. */
+    protected long bytesOffered = 0;
+
+    /** Quickest heartbeat round trip seen, in milliseconds, or -1 if none yet. */
+    protected long minRoundTrip = -1;
+
+    /** Slowest heartbeat round trip since the last tick, in milliseconds, or -1 if none. */
+    protected long worstRoundTrip = -1;
+
+    /** Estimated bytes offered but not yet let through by the rate. */
+    protected long backlogBytes = 0;
+
+    /** Throughput offered over the last tick, in kbits/sec. */
+    protected double offeredKbps = 0;
+
+    /** Delay our sends saw over the last tick, in milliseconds. */
+    protected long lastSendDelay = 0;
+
+    /** Number of ticks our sends were held up. */
+    protected long delayedTicks = 0;
+
+    /** Number of times we've changed the rate. */
+    protected long adjustmentCount = 0;
+
+
+    /** Make a new tuner for this transporter's profile. */
+    public pdLRMPProfileTuner( pdEventTransporterLRMPImpl transporter, LrmpProfile profile, long intervalMillis,
+                               int rateFloor, int rateCeiling, int rateStep, int windowSeconds, int minWindowSize )
+    {
+      this.transporter = transporter;
+      this.profile = profile;
+      this.intervalMillis = intervalMillis;
+      this.rateFloor = rateFloor;
+      this.rateCeiling = Math.max( rateFloor, rateCeiling );
+      this.rateStep = rateStep;
+      this.windowSeconds = windowSeconds;
+      this.minWindowSize = minWindowSize;
+    }
+
+
+    /** Start the tuning thread. */
+    public synchronized void start()
+    {
+      if ( running )
+        return ;
+
+      running = true;
+      tuneThread = new Thread( this );
+      tuneThread.setDaemon( true );
+      tuneThread.start();
+    }
+
+
+    /** Stop the tuning thread. */
+    public synchronized void stop()
+    {
+      running = false;
+    }
+
+
+    /** One of our heartbeats was acknowledged this many milliseconds after it was sent. */
+    public synchronized void countRoundTrip( long millis )
+    {
+      if ( ( minRoundTrip < 0 ) || ( millis < minRoundTrip ) )
+        minRoundTrip = millis;
+      worstRoundTrip = Math.max( worstRoundTrip, millis );
+    }
+
+
+    /** We offered LRMP this many bytes to send. */
+    public synchronized void countBytesOffered( int bytes )
+    {
+      bytesOffered += bytes;
+    }
+
+
+    /** Look at the last tick and change the rate if we should. */
+    public synchronized void adjust()
+    {
+      // With no acknowledgement this tick, ours have been held up at
+      // least since the last one came back.
+      lastSendDelay = 0;
+      if ( worstRoundTrip >= 0 )
+        lastSendDelay = worstRoundTrip - minRoundTrip;
+      else if ( minRoundTrip >= 0 )
+        lastSendDelay = Math.max( 0, System.currentTimeMillis() - transporter.getLastAckTime() - minRoundTrip );
+      worstRoundTrip = -1;
+
+      boolean delayed = ( lastSendDelay > intervalMillis );
+      if ( delayed )
+        delayedTicks++;
+
+      int rate = profile.maxRate;
+      long allowedBytes = ( ( long ) rate * 1000 / 8 ) * intervalMillis / 1000;
+      offeredKbps = ( bytesOffered * 8.0 ) / intervalMillis;
+      backlogBytes = Math.max( 0, backlogBytes + bytesOffered - allowedBytes );
+      bytesOffered = 0;
+
+      int newRate = rate;
+      if ( delayed )
+        newRate = Math.max( rateFloor, rate / 2 );
+      else if ( backlogBytes > 0 )
+        newRate = Math.min( rateCeiling, rate + rateStep );
+
+      if ( newRate == rate )
+        return ;
+
+      bbPrinter.bbDebug( "pdLRMPProfileTuner: rate " + rate + " -> " + newRate + " kbits/sec (send delay " + lastSendDelay + " ms, backlog " + backlogBytes + " bytes)\n" );
+      profile.maxRate = newRate;
+      profile.minRate = Math.min( profile.minRate, newRate );
+      profile.sendWindowSize = Math.max( minWindowSize, newRate * windowSeconds / 8 );
+      profile.rcvWindowSize = profile.sendWindowSize;
+      adjustmentCount++;
+    }
+
+
+    /** Adjust once per tick, and send a heartbeat to time the next one. */
+    public void run()
+    {
+      while ( running )
+        {
+          try
+            {
+              Thread.sleep( intervalMillis );
+            }
+          catch ( InterruptedException e )
+            {
+              bbPrinter.bbDebug( "pdLRMPProfileTuner: interrupted\n" );
+            }
+
+          adjust();
+          transporter.sendHeartbeat( intervalMillis * 4 );
+        }
+    }
+
+
+    /** Get the current send rate, in kbits/sec. */
+    public synchronized int getRate()
+    {
+      return profile.maxRate;
+    }
+
+
+    /** Get the throughput offered over the last tick, in kbits/sec. */
+    public synchronized double getOfferedKbps()
+    {
+      return offeredKbps;
+    }
+
+
+    /** Get the estimated bytes offered but not yet let through by the rate. */
+    public synchronized long getBacklogBytes()
+    {
+      return backlogBytes;
+    }
+
+
+    /** Get the delay our sends saw over the last tick, in milliseconds. */
+    public synchronized long getLastSendDelay()
+    {
+      return lastSendDelay;
+    }
+
+
+    /** Get the number of ticks our sends were held up. */
+    public synchronized long getDelayedTicks()
+    {
+      return delayedTicks;
+    }
+
+
+    /** Get the number of times the rate has changed. */
+    public synchronized long getAdjustmentCount()
+    {
+      return adjustmentCount;
+    }
+
+
+    /** Print the current state. */
+    public synchronized String toString()
+    {
+      return "pdLRMPProfileTuner: " + profile.maxRate + " kbits/sec, offered " + offeredKbps +
+             " kbits/sec, backlog " + backlogBytes + " bytes, send delay " + lastSendDelay + " ms (" +
+             delayedTicks + " ticks delayed), " + adjustmentCount + " adjustments";
+    }
+  }
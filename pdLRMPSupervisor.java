@@ -0,0 +1,129 @@
+package pdEventTransportSubsystem;
+
+import bamboo.bbPrinter;
+
+
+/**
+ * Watches a SUMP transporter's LRMP side and restarts it when it has
+ * really stalled. Every heartbeat interval it sends an LRMP heartbeat,
+ * which one other node, taken in turn, acknowledges through LRMP, so
+ * LRMP traffic keeps flowing even when nobody has reliable events to
+ * send.
+ * <P>
+ * LRMP is taken to have stalled only when other nodes are evidently
+ * there -- unreliable events are still arriving over IP multicast --
+ * yet for the whole stall timeout we've had no LRMP packets from them,
+ * or no acknowledgement of our heartbeats. A quiet group is not a
+ * stall. After a restart the supervisor waits a full stall timeout
+ * before judging again.
+ *
+ * @author BARS Team
+ */
+public class pdLRMPSupervisor implements Runnable
+  {
+    /** The transporter whose LRMP side we watch. */
+    protected pdEventTransporterSUMPImpl transporter = null;
+
+    /** Milliseconds between heartbeats. */
+    protected long heartbeatMillis = 2000;
+
+    /** Milliseconds of silence that make a stall. */
+    protected long stallMillis = 10000;
+
+    /** Is the supervising thread running? */
+    protected boolean running = false;
+
+    /** The supervising thread. */
+    protected Thread superviseThread = null;
+
+    /** When we started watching, or last restarted LRMP, in milliseconds. */
+    protected long watchStartTime = 0;
+
+    /** Number of stalls we've found. */
+    protected long stallCount = 0;
+
+
+    /** Make a new supervisor for this transporter. */
+    public pdLRMPSupervisor( pdEventTransporterSUMPImpl transporter, long heartbeatMillis, long stallMillis )
+    {
+      this.transporter = transporter;
+      this.heartbeatMillis = heartbeatMillis;
+      this.stallMillis = stallMillis;
+    }
+
+
+    /** Start the supervising thread. */
+    public synchronized void start()
+    {
+      if ( running )
+        return ;
+
+      running = true;
+      watchStartTime = System.currentTimeMillis();
+      superviseThread = new Thread( this );
+      superviseThread.setDaemon( true );
+      superviseThread.start();
+    }
+
+
+    /** Stop the supervising thread. */
+    public synchronized void stop()
+    {
+      running = false;
+    }
+
+
+    /** Has LRMP stalled, as of now? */
+    public boolean isStalled( long now )
+    {
+      pdEventTransporterLRMPImpl LRMPTransporter = transporter.getLRMPTransporter();
+
+      if ( ( now - watchStartTime ) < stallMillis )
+        return false;
+
+      if ( ( now - transporter.getLastUnreliableReceiveTime() ) > stallMillis )
+        return false;
+
+      return ( ( ( now - LRMPTransporter.getLastReceiveTime() ) > stallMillis ) ||
+               ( ( now - LRMPTransporter.getLastAckTime() ) > stallMillis ) );
+    }
+
+
+    /** Send a heartbeat and check for a stall once per interval. */
+    public void run()
+    {
+      while ( running )
+        {
+          try
+            {
+              Thread.sleep( heartbeatMillis );
+            }
+          catch ( InterruptedException e )
+            {
+              bbPrinter.bbDebug( "pdLRMPSupervisor: interrupted\n" );
+            }
+
+          if ( !running )
+            return ;
+
+          pdEventTransporterLRMPImpl LRMPTransporter = transporter.getLRMPTransporter();
+          LRMPTransporter.sendHeartbeat( stallMillis );
+
+          long now = System.currentTimeMillis();
+          if ( isStalled( now ) )
+            {
+              bbPrinter.bbWarn( "LRMP transporter seems stalled--restarting it...\n" );
+              stallCount++;
+              LRMPTransporter.restartLRMP();
+              watchStartTime = System.currentTimeMillis();
+            }
+        }
+    }
+
+
+    /** Get the number of stalls found. */
+    public long getStallCount()
+    {
+      return stallCount;
+    }
+  }
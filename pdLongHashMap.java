@@ -0,0 +1,202 @@
+package pdEventTransportSubsystem;
+
+
+/**
+ * Hash map from primitive longs to primitive longs: no Long objects,
+ * constant-time put, get and remove. Open addressing with linear
+ * probing, like pdLongHashSet.
+ *
+ * @author BARS Team
+ */
+public class pdLongHashMap
+  {
+    /** The key slots. */
+    protected long[] keys = null;
+
+    /** The value for each key slot. */
+    protected long[] values = null;
+
+    /** Which slots are in use. */
+    protected boolean[] used = null;
+
+    /** Number of keys in the map. */
+    protected int size = 0;
+
+    /** Slot count minus one (slot count is a power of two). */
+    protected int mask = 0;
+
+
+    /** Make a new map with room for about expectedSize keys before it grows. */
+    public pdLongHashMap( int expectedSize )
+    {
+      int capacity = 16;
+      while ( capacity < ( expectedSize * 2 ) )
+        capacity *= 2;
+      allocate( capacity );
+    }
+
+
+    /** Make a new empty map. */
+    public pdLongHashMap()
+    {
+      this( 8 );
+    }
+
+
+    /** Map key to value, replacing any value it had. */
+    public void put( long key, long value )
+    {
+      int i = indexFor( key );
+      while ( used[ i ] )
+        {
+          if ( keys[ i ] == key )
+            {
+              values[ i ] = value;
+              return ;
+            }
+          i = ( i + 1 ) & mask;
+        }
+
+      keys[ i ] = key;
+      values[ i ] = value;
+      used[ i ] = true;
+      size++;
+
+      // Keep the load factor at one half or less.
+      if ( ( size * 2 ) > keys.length )
+        rehash( keys.length * 2 );
+    }
+
+
+    /** Get the value for key, or valueIfMissing if it has none. */
+    public long get( long key, long valueIfMissing )
+    {
+      int i = slotOf( key );
+      return ( ( i < 0 ) ? valueIfMissing : values[ i ] );
+    }
+
+
+    /** Does key have a value? */
+    public boolean containsKey( long key )
+    {
+      return ( slotOf( key ) >= 0 );
+    }
+
+
+    /** Remove a key; returns false if it wasn't there. */
+    public boolean remove( long key )
+    {
+      int hole = slotOf( key );
+      if ( hole < 0 )
+        return false;
+
+      used[ hole ] = false;
+      size--;
+
+      // Shift back any later keys in this probe run that could use the hole.
+      int i = hole;
+      while ( true )
+        {
+          i = ( i + 1 ) & mask;
+          if ( !used[ i ] )
+            break;
+
+          int home = indexFor( keys[ i ] );
+          boolean homeBetween = ( hole <= i ) ? ( ( hole < home ) && ( home <= i ) )
+                                              : ( ( hole < home ) || ( home <= i ) );
+          if ( homeBetween )
+            continue;
+
+          keys[ hole ] = keys[ i ];
+          values[ hole ] = values[ i ];
+          used[ hole ] = true;
+          used[ i ] = false;
+          hole = i;
+        }
+
+      return true;
+    }
+
+
+    /** Number of keys in the map. */
+    public int size()
+    {
+      return size;
+    }
+
+
+    /** Remove all keys. */
+    public void clear()
+    {
+      for ( int i = 0; i < used.length; i++ )
+        used[ i ] = false;
+      size = 0;
+    }
+
+
+    /** Get all the keys, in no particular order. */
+    public long[] keys()
+    {
+      long[] result = new long[ size ];
+      int j = 0;
+      for ( int i = 0; i < keys.length; i++ )
+        {
+          if ( used[ i ] )
+            result[ j++ ] = keys[ i ];
+        }
+
+      return result;
+    }
+
+
+    /** Slot holding this key, or -1. */
+    protected int slotOf( long key )
+    {
+      int i = indexFor( key );
+      while ( used[ i ] )
+        {
+          if ( keys[ i ] == key )
+            return i;
+          i = ( i + 1 ) & mask;
+        }
+
+      return -1;
+    }
+
+
+    /** Home slot for a key. */
+    protected int indexFor( long key )
+    {
+      int h = ( int ) ( key ^ ( key >>> 32 ) );
+      h *= 0x9E3779B9;
+      h ^= ( h >>> 16 );
+      return h & mask;
+    }
+
+
+    /** Make new, empty slot arrays. */
+    protected void allocate( int capacity )
+    {
+      keys = new long[ capacity ];
+      values = new long[ capacity ];
+      used = new boolean[ capacity ];
+      mask = capacity - 1;
+      size = 0;
+    }
+
+
+    /** Move every key and value into slot arrays of the new capacity. */
+    protected void rehash( int capacity )
+    {
+      long[] oldKeys = keys;
+      long[] oldValues = values;
+      boolean[] oldUsed = used;
+      allocate( capacity );
+
+      for ( int i = 0; i < oldKeys.length; i++ )
+        {
+          if ( oldUsed[ i ] )
+            put( oldKeys[ i ], oldValues[ i ] );
+        }
+    }
+  }
@@ -0,0 +1,186 @@
+package pdEventTransportSubsystem;
+
+
+/**
+ * Hash set of primitive longs: no Long objects, constant-time add,
+ * contains and remove. Open addressing with linear probing; removal
+ * shifts later entries back so lookups never need tombstones.
+ *
+ * @author BARS Team
+ */
+public class pdLongHashSet
+  {
+    /** The slots. */
+    protected long[] keys = null;
+
+    /** Which slots are in use. */
+    protected boolean[] used = null;
+
+    /** Number of keys in the set. */
+    protected int size = 0;
+
+    /** Slot count minus one (slot count is a power of two). */
+    protected int mask = 0;
+
+
+    /** Make a new set with room for about expectedSize keys before it grows. */
+    public pdLongHashSet( int expectedSize )
+    {
+      int capacity = 16;
+      while ( capacity < ( expectedSize * 2 ) )
+        capacity *= 2;
+      allocate( capacity );
+    }
+
+
+    /** Make a new empty set. */
+    public pdLongHashSet()
+    {
+      this( 8 );
+    }
+
+
+    /** Add a key; returns false if it was already there. */
+    public boolean add( long key )
+    {
+      int i = indexFor( key );
+      while ( used[ i ] )
+        {
+          if ( keys[ i ] == key )
+            return false;
+          i = ( i + 1 ) & mask;
+        }
+
+      keys[ i ] = key;
+      used[ i ] = true;
+      size++;
+
+      // Keep the load factor at one half or less.
+      if ( ( size * 2 ) > keys.length )
+        rehash( keys.length * 2 );
+
+      return true;
+    }
+
+
+    /** Is this key in the set? */
+    public boolean contains( long key )
+    {
+      return ( slotOf( key ) >= 0 );
+    }
+
+
+    /** Remove a key; returns false if it wasn't there. */
+    public boolean remove( long key )
+    {
+      int hole = slotOf( key );
+      if ( hole < 0 )
+        return false;
+
+      used[ hole ] = false;
+      size--;
+
+      // Shift back any later keys in this probe run that could use the hole.
+      int i = hole;
+      while ( true )
+        {
+          i = ( i + 1 ) & mask;
+          if ( !used[ i ] )
+            break;
+
+          int home = indexFor( keys[ i ] );
+          boolean homeBetween = ( hole <= i ) ? ( ( hole < home ) && ( home <= i ) )
+                                              : ( ( hole < home ) || ( home <= i ) );
+          if ( homeBetween )
+            continue;
+
+          keys[ hole ] = keys[ i ];
+          used[ hole ] = true;
+          used[ i ] = false;
+          hole = i;
+        }
+
+      return true;
+    }
+
+
+    /** Number of keys in the set. */
+    public int size()
+    {
+      return size;
+    }
+
+
+    /** Remove all keys. */
+    public void clear()
+    {
+      for ( int i = 0; i < used.length; i++ )
+        used[ i ] = false;
+      size = 0;
+    }
+
+
+    /** Get all the keys, in no particular order. */
+    public long[] toArray()
+    {
+      long[] result = new long[ size ];
+      int j = 0;
+      for ( int i = 0; i < keys.length; i++ )
+        {
+          if ( used[ i ] )
+            result[ j++ ] = keys[ i ];
+        }
+
+      return result;
+    }
+
+
+    /** Slot holding this key, or -1. */
+    protected int slotOf( long key )
+    {
+      int i = indexFor( key );
+      while ( used[ i ] )
+        {
+          if ( keys[ i ] == key )
+            return i;
+          i = ( i + 1 ) & mask;
+        }
+
+      return -1;
+    }
+
+
+    /** Home slot for a key. */
+    protected int indexFor( long key )
+    {
+      int h = ( int ) ( key ^ ( key >>> 32 ) );
+      h *= 0x9E3779B9;
+      h ^= ( h >>> 16 );
+      return h & mask;
+    }
+
+
+    /** Make new, empty slot arrays. */
+    protected void allocate( int capacity )
+    {
+      keys = new long[ capacity ];
+      used = new boolean[ capacity ];
+      mask = capacity - 1;
+      size = 0;
+    }
+
+
+    /** Move every key into slot arrays of the new capacity. */
+    protected void rehash( int capacity )
+    {
+      long[] oldKeys = keys;
+      boolean[] oldUsed = used;
+      allocate( capacity );
+
+      for ( int i = 0; i < oldKeys.length; i++ )
+        {
+          if ( oldUsed[ i ] )
+            add( oldKeys[ i ] );
+        }
+    }
+  }
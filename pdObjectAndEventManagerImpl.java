@@ -29,17 +29,63 @@ public class pdObjectAndEventManagerImpl extends pdEventDispatcherImpl implement
     /** Name of the object repository in use */
     private String objectRepositoryName = null;
 
-    /** List of distributed objects we've ever killed */
-    Vector killedDistributedObjects = new Vector();
+    /**
+     * Distributed objects we've killed lately. killedObjectRetention on
+     * the command line says how long to remember a kill in milliseconds
+     * (default 3600000) and killedObjectMax how many to remember (default
+     * 10000).
+     */
+    pdKilledObjectSet killedDistributedObjects = null;
+
+    /**
+     * Orphan objects and their supposed parents. orphanTimeout on the
+     * command line says how long an orphan may wait for its parent in
+     * milliseconds (default 300000).
+     */
+    pdOrphanRegistry orphans = null;
 
-    /** Table of orphan objects and their supposed parents */
-    Hashtable orphans = new Hashtable();
+    /** Registered objects by name, for findObject( String ). */
+    protected pdObjectNameIndex nameIndex = new pdObjectNameIndex();
 
     /** 
      * Is this OAEM a "repository holder?" By default, it is, but that status
      * can be revoked at any time. Once revoked it cannot be reinstated.
      */    
     boolean isRepositoryHolder = true;
+
+    /**
+     * Events from the network wait here for the dispatcher thread,
+     * if objectManagerIngressQueue is true on the command line;
+     * otherwise null and events are dispatched by the caller.
+     */
+    protected pdEventIngressQueue ingressQueue = null;
+
+
+    /**
+     * Sends object snapshots at objectSnapshotRate events a second, if
+     * that's more than 0 on the command line; otherwise null and
+     * snapshots are sent all at once.
+     */
+    protected pdObjectSnapshotPacer snapshotPacer = null;
+
+    /**
+     * Answers requests for all objects after a random backoff of up to
+     * sendAllObjectsBackoff milliseconds, if that's more than 0 on the
+     * command line; otherwise null and every request is answered at
+     * once.
+     */
+    protected pdSendAllObjectsResponder sendAllResponder = null;
+
+    /**
+     * When we last asked each channel for all objects. Repeat requests
+     * within sendAllObjectsRequestWindow milliseconds (default 0) aren't
+     * sent.
+     */
+    protected Hashtable lastRequestTimes = new Hashtable();
+
+    /** How long a request for all objects covers later ones, in milliseconds. */
+    protected long requestWindow = 0;
+
    
 
     /**
@@ -60,10 +106,16 @@ public class pdObjectAndEventManagerImpl extends pdEventDispatcherImpl implement
         positiveRandomNumber *= -1;
       nextAvailableObjectID = ( ( positiveRandomNumber % 100000 ) * 100000 ) + 1;
 
+      createKilledObjectSet();
+      createOrphanRegistry();
+
       // Register mandatory event types.
       this.registerEventType( "pdObjectSubsystem.events.pdObjectCreationEvent",
                               "pdObjectSubsystem.events.pdObjectCreationListener",
                               "pdObjectCreated" );
+      this.registerEventType( "pdObjectSubsystem.events.pdObjectAndEventManagerSnapshotCreationEvent",
+                              "pdObjectSubsystem.events.pdObjectCreationListener",
+                              "pdObjectCreated" );
       this.registerEventType( "pdObjectSubsystem.events.pdObjectChangeEvent",
                               "pdObjectSubsystem.events.pdObjectChangeListener",
                               "pdObjectChanged" );
@@ -77,6 +129,22 @@ public class pdObjectAndEventManagerImpl extends pdEventDispatcherImpl implement
                               "pdObjectSubsystem.events.pdObjectMessageListener",
                               "pdObjectMessaged" );
 
+      if ( CommandLine.get( "objectManagerIngressQueue", "false" ).equalsIgnoreCase( "true" ) )
+        ingressQueue = new pdEventIngressQueue( this );
+
+      int snapshotRate = 0;
+      try
+        {
+          snapshotRate = Integer.parseInt( CommandLine.get( "objectSnapshotRate", "0" ) );
+        }
+      catch ( NumberFormatException e )
+        {
+          bbPrinter.bbError( "objectSnapshotRate not a number! Using 0...\n" );
+        }
+      if ( snapshotRate > 0 )
+        snapshotPacer = new pdObjectSnapshotPacer( this, snapshotRate );
+
+      createSendAllResponder();
     }
 
 
@@ -132,6 +200,7 @@ public class pdObjectAndEventManagerImpl extends pdEventDispatcherImpl implement
           bbPrinter.bbError( "ObjectAndEventManager.registerObject: Problem registering object with repository\n");
           bbPrinter.bbError( "ObjectAndEventManager.registerObject: Object ID = " + newObject.getID() + " name = " + newObject.getName() + "\n" );
         }
+      nameIndex.add( newObject );
 
       // Set the object's reference to the objectAndEventManager
       newObject.setObjectAndEventManager( this );
@@ -167,6 +236,7 @@ public class pdObjectAndEventManagerImpl extends pdEventDispatcherImpl implement
           bbPrinter.bbDebug( "ObjectAndEventManager.unregisterObject: Unregistering object " + deadObject.getID() + "\n" );
           objectRepository.unregisterObject( deadObject );
         }
+      nameIndex.remove( deadObject );
     }
 
 
@@ -192,23 +262,109 @@ public class pdObjectAndEventManagerImpl extends pdEventDispatcherImpl implement
     }
 
 
-    /** Find an object in the local repository using its name. */
+    /**
+     * Find an object in the local repository using its name. If several
+     * indexed objects have the name, the one with the lowest ID is found.
+     */
     public pdBaseObject findObject( String objectName )
     {
+      if ( objectName == null )
+        return null;
+
+      pdBaseObject found = nameIndex.find( objectName );
+      if ( found != null )
+        return found;
+
+      // Not indexed under this name; the object may have been renamed
+      // without objectRenamed(), so look at every object's current name,
+      // and index the one we find.
       Iterator theObjects = objectRepository.getAllObjects().iterator();
 
       while ( theObjects.hasNext() )
         {
           Map.Entry nextEntry = ( Map.Entry ) theObjects.next();
           pdBaseObject thisObj = ( pdBaseObject ) ( nextEntry.getValue() );
-          if ( ( thisObj.getName() != null ) && ( thisObj.getName().equals( objectName ) ) )
-            return thisObj;
+          if ( objectName.equals( thisObj.getName() ) )
+            {
+              nameIndex.add( thisObj );
+              return thisObj;
+            }
         }
 
       return null;
     }
 
 
+    /**
+     * An object has been renamed; find it under its new name from now on.
+     * Whoever calls setName on a registered object should call this too.
+     */
+    public void objectRenamed( pdBaseObject renamedObject )
+    {
+      nameIndex.renamed( renamedObject );
+    }
+
+
+    /** Create the set of killed objects from the command line options. */
+    private void createKilledObjectSet()
+    {
+      long retention = 3600000;
+      int maxKilled = 10000;
+      try
+        {
+          retention = Long.parseLong( CommandLine.get( "killedObjectRetention", "3600000" ) );
+          maxKilled = Integer.parseInt( CommandLine.get( "killedObjectMax", "10000" ) );
+        }
+      catch ( NumberFormatException e )
+        {
+          bbPrinter.bbError( "killedObjectRetention or killedObjectMax not a number! Using 3600000 and 10000...\n" );
+          retention = 3600000;
+          maxKilled = 10000;
+        }
+
+      killedDistributedObjects = new pdKilledObjectSet( retention, maxKilled );
+    }
+
+
+    /** Make the SendAllObjects responder and request window from the command line. */
+    private void createSendAllResponder()
+    {
+      long backoff = 0;
+      try
+        {
+          backoff = Long.parseLong( CommandLine.get( "sendAllObjectsBackoff", "0" ) );
+          requestWindow = Long.parseLong( CommandLine.get( "sendAllObjectsRequestWindow", "0" ) );
+        }
+      catch ( NumberFormatException e )
+        {
+          bbPrinter.bbError( "sendAllObjectsBackoff or sendAllObjectsRequestWindow not a number! Using 0...\n" );
+          backoff = 0;
+          requestWindow = 0;
+        }
+
+      if ( backoff > 0 )
+        sendAllResponder = new pdSendAllObjectsResponder( this, backoff );
+    }
+
+
+    /** Make the orphan registry, with its timeout from the command line. */
+    private void createOrphanRegistry()
+    {
+      long orphanTimeout = 300000;
+      try
+        {
+          orphanTimeout = Long.parseLong( CommandLine.get( "orphanTimeout", "300000" ) );
+        }
+      catch ( NumberFormatException e )
+        {
+          bbPrinter.bbError( "orphanTimeout not a number! Using 300000...\n" );
+          orphanTimeout = 300000;
+        }
+
+      orphans = new pdOrphanRegistry( orphanTimeout );
+    }
+
+
     /** Return a set of all objects. */
     public Set getAllObjects()
     {
@@ -222,55 +378,36 @@ public class pdObjectAndEventManagerImpl extends pdEventDispatcherImpl implement
      */                                                         
     public void addOrphan( long childID, long parentID )
     {
-      if ( orphans.contains( new Long( childID ) ) )
+      if ( orphans.add( childID, parentID ) )
         {
-          long oldParentID = ( ( Long )( orphans.get( new Long( childID ) ) ) ).longValue();
-          bbPrinter.bbDebug( "objectAndEventManager: already have orphan " +
-                             childID + " with parent " + oldParentID + " (new parent = " +
-                             parentID + ")... ignoring this request\n" );
+          bbPrinter.bbDebug( "objectAndEventManager: adding orphan " + childID + 
+                             " with deadbeat parent " + parentID + "\n" );
         }
       else
         {
-          bbPrinter.bbDebug( "objectAndEventManager: adding orphan " + childID + 
-                             " with deadbeat parent " + parentID + "\n" );
-          orphans.put( new Long( childID ), new Long( parentID ) );
+          long oldParentID = orphans.getParent( childID, parentID );
+          bbPrinter.bbDebug( "objectAndEventManager: already have orphan " +
+                             childID + " with parent " + oldParentID + " (new parent = " +
+                             parentID + ")... ignoring this request\n" );
         }
     }
     
 
-    /** Check if this object is a deadbeat parent and if so, look for its child to reunite them. */
+    /** Check if this object is a deadbeat parent and if so, reunite it with its waiting children. */
     protected void checkAndReuniteParent( pdBaseObject parent )
     {
-      if ( orphans.containsValue ( new Long( parent.getID() ) ) )
+      long[] children = orphans.removeChildrenOf( parent.getID() );
+      for ( int i = 0; i < children.length; i++ )
         {
-          // Walk through all children and see how many might need this parent.
-          Enumeration e = orphans.keys();
-          while ( e.hasMoreElements() )
-            {            
-              Long currChildID = ( Long )( e.nextElement() );
-              Long currParentID = ( Long )( orphans.get( currChildID ) );
-              
-              // If this child needs this parent, reunite them and remove this orphans table entry.
-              if ( currParentID.longValue() == parent.getID() )
-                {
-                  bbPrinter.bbNotice( "objectAndEventManager: reuniting child " + currChildID + 
-                                      " with parent " + currParentID + "\n" );
-                                      
-                  pdBaseObject child = findObject( currChildID.longValue() );
-                  if ( child instanceof pdCoordinateTreeObject )
-                    {
-                      ( ( pdCoordinateTreeObject ) child ).setParentLocal( parent.getID() );
-                    }
-                  
-                  orphans.remove( currChildID );
-                }
+          bbPrinter.bbNotice( "objectAndEventManager: reuniting child " + children[ i ] + 
+                              " with parent " + parent.getID() + "\n" );
+
+          pdBaseObject child = findObject( children[ i ] );
+          if ( child instanceof pdCoordinateTreeObject )
+            {
+              ( ( pdCoordinateTreeObject ) child ).setParentLocal( parent.getID() );
             }
         }
-      else
-        {
-          return;
-        }
-      
     }
 
 
@@ -297,12 +434,33 @@ public class pdObjectAndEventManagerImpl extends pdEventDispatcherImpl implement
     //                                                        //
     ////////////////////////////////////////////////////////////
 
-    /** Accept an event to be dispatched */
-    public synchronized void acceptEvent( pdBasicEvent event )
+    /**
+     * Accept an event to be dispatched. With an ingress queue, events that
+     * came from the network are posted to it and dispatched later on its
+     * thread. Object events raised locally are still dispatched on the
+     * caller's thread, so that an object changing itself sees the change
+     * at once, as it always has; so is anything the queue won't take.
+     */
+    public void acceptEvent( pdBasicEvent event )
     {
       // Don't dispatch null events
       if ( event == null )
         return ;
+
+      if ( ( ingressQueue != null ) && !ingressQueue.isDispatcherThread() &&
+           !( ( event instanceof pdObjectEvent ) && ( ( pdObjectEvent ) event ).getIsSourceLocal() ) )
+        {
+          if ( ingressQueue.post( event ) )
+            return ;
+        }
+
+      dispatchEvent( event );
+    }
+
+
+    /** Dispatch an event now, on the caller's thread. */
+    protected synchronized void dispatchEvent( pdBasicEvent event )
+    {
    
       // Handle transport system events...
       
@@ -331,35 +489,10 @@ public class pdObjectAndEventManagerImpl extends pdEventDispatcherImpl implement
           if ( ( ( objectRepository.getSelfUserObject() != null ) && ( event.getTargetID() == objectRepository.getSelfUserObject().getID() ) ) ||
                ( ( event.getTargetID() == pdObjectAndEventManagerEvent.REPOSITORY_HOLDER ) && getIsRepositoryHolder() ) )
             {
-              bbPrinter.bbDebug( "ObjectAndEventManager: SENDING ALL OBJECTS AND DEATH NOTICES!!!!!\n" );
-              
-              // Get the channel for this event
-              String channelName = event.getChannelName();
-
-              // Keep track of which objects we've sent
-              Vector sentList = new Vector();
-
-              // Send the objects
-              Iterator allObjects = ( objectRepository.getAllObjects() ).iterator();
-              while ( allObjects.hasNext() )
-                {
-                  pdBaseObject currObject = ( pdBaseObject ) ( ( ( Map.Entry
-                                                                 ) allObjects.next() ).getValue() );
-                  sendObjectReplica( currObject, channelName, sentList );
-                }
-              
-              // This condition occurs usually when another application has joined the
-              // network OR has re-joined the network after leaving it. In the latter case,
-              // that other application may have also missed object kill events (in addition
-              // to the object create events we just re-sent). So, send destruction events 
-              // (probably redundant) for all destroyed objects.
-              Iterator koit = killedDistributedObjects.iterator();
-              while ( koit.hasNext() )
-                {
-                  long killMe = ( ( Long ) koit.next() ).longValue();
-                  acceptEvent( new pdObjectDestructionEvent( killMe, false, true ) );
-                }
-              
+              if ( sendAllResponder != null )
+                sendAllResponder.request( event.getChannelName() );
+              else
+                sendAllObjects( event.getChannelName() );
             }
           return ;
         }
@@ -402,8 +535,7 @@ public class pdObjectAndEventManagerImpl extends pdEventDispatcherImpl implement
               // During this disconnection, some object updates might have
               // been missed. So, also send request for ALL OBJECTS since we 
               // might have missed some during our absence from the network.
-              if ( defaultChannel != null )
-                defaultChannel.sendEvent( new pdObjectAndEventManagerSendAllObjectsEvent() );
+              requestAllObjects( defaultChannel );
             }
           return ;
         }
@@ -477,13 +609,13 @@ public class pdObjectAndEventManagerImpl extends pdEventDispatcherImpl implement
               // messags clogging up the system. 
               
               // If ID is not already in the list, add it to the list.
-              if ( ! killedDistributedObjects.contains( new Long( objEvent.getTargetID() ) ) ) 
+              if ( ! killedDistributedObjects.contains( objEvent.getTargetID() ) ) 
                 {
                   // Check if object is distributed.
                   if ( ( objEvent.getTargetObject() != null ) && 
                        ( objEvent.getTargetObject().getIsDistributed() ) )
                     {
-                      killedDistributedObjects.add( new Long( objEvent.getTargetID() ) );                  
+                      killedDistributedObjects.add( objEvent.getTargetID() );
                     }
                 }
             }
@@ -579,38 +711,172 @@ public class pdObjectAndEventManagerImpl extends pdEventDispatcherImpl implement
 
 
     /**
-     * Send an object replica over the given channel if the object is
-     * distributed and belongs to the channel and it hasn't been sent yet
-     * (i.e. isn't in sentList).
+     * Send creation events for all our distributed objects on a channel,
+     * and death notices for recently killed ones, for the benefit of a
+     * new network member. With a SendAllObjects responder the creations
+     * are marked as an answer, so that other repository holders can tell
+     * it from other creation events; otherwise they're plain creation
+     * events, which every node understands.
+     */
+    protected synchronized void sendAllObjects( String channelName )
+    {
+      bbPrinter.bbDebug( "ObjectAndEventManager: SENDING ALL OBJECTS AND DEATH NOTICES!!!!!\n" );
+
+      // Creation events for the objects on this channel, parents first.
+      // They go first so that the first event of an answer is its first
+      // creation, which tells other holders the answer has begun.
+      Vector snapshot = new Vector();
+      Vector objects = orderSnapshot( channelName );
+      for ( int i = 0; i < objects.size(); i++ )
+        {
+          pdBaseObject currObject = ( pdBaseObject ) objects.elementAt( i );
+          if ( sendAllResponder != null )
+            snapshot.addElement( new pdObjectAndEventManagerSnapshotCreationEvent( currObject, i, objects.size() ) );
+          else
+            snapshot.addElement( new pdObjectCreationEvent( currObject, false, true ) );
+        }
+
+      // This condition occurs usually when another application has joined the
+      // network OR has re-joined the network after leaving it. In the latter case,
+      // that other application may have also missed object kill events (in addition
+      // to the object create events we just re-sent). So, send destruction events 
+      // (probably redundant) for recently destroyed objects.
+      long[] killedIDs = killedDistributedObjects.toArray();
+      for ( int i = 0; i < killedIDs.length; i++ )
+        snapshot.addElement( new pdObjectDestructionEvent( killedIDs[ i ], false, true ) );
+
+      if ( snapshotPacer != null )
+        {
+          snapshotPacer.send( snapshot );
+        }
+      else
+        {
+          for ( int i = 0; i < snapshot.size(); i++ )
+            sendSnapshotEvent( ( pdBasicEvent ) snapshot.elementAt( i ) );
+        }
+    }
+
+
+    /**
+     * Ask a channel for all its objects, unless we already asked within
+     * the request window.
      */
-    private void sendObjectReplica( pdBaseObject currObject, String channelName, Vector sentList )
+    protected void requestAllObjects( pdChannel channel )
     {
-      // Check if object is in sent list; if so, skip it.
-      if ( sentList.contains( currObject ) )
+      if ( channel == null )
         return ;
 
-      // If this object has a parent, make sure to send it first.
-      // HACK: current code can send an object many, many times since
-      // we don't keep track of objects we've sent. Worst case:
-      // pass a leaf into this method...
-      if ( currObject instanceof pdCoordinateTreeObject )
+      if ( requestWindow > 0 )
         {
-          pdCoordinateTreeObject treeObject = ( pdCoordinateTreeObject ) currObject;
-          if ( treeObject.getParentID() != pdCoordinateTreeObject.NO_PARENT )
+          synchronized ( lastRequestTimes )
             {
-              sendObjectReplica( findObject( treeObject.getParentID() ), channelName, sentList );
+              long now = System.currentTimeMillis();
+              Long lastRequest = ( Long ) lastRequestTimes.get( channel );
+              if ( ( lastRequest != null ) && ( ( now - lastRequest.longValue() ) < requestWindow ) )
+                {
+                  bbPrinter.bbDebug( "ObjectAndEventManager: already asked this channel for all objects\n" );
+                  return ;
+                }
+              lastRequestTimes.put( channel, new Long( now ) );
             }
         }
 
-      // Can send it if it's distributed and the channel name matches
-      // the event channel name.
-      if ( currObject.getIsDistributed() &&
-           ( ( channelName != null ) &&
-             channelName.equals( currObject.getChannelName() ) ) )
+      channel.sendEvent( new pdObjectAndEventManagerSendAllObjectsEvent() );
+    }
+
+
+    /**
+     * Get the distributed objects on the given channel, every parent
+     * ahead of its children. One pass over the repository: each object
+     * is visited once, by walking up from it to the first ancestor
+     * already visited, then adding that chain top-down.
+     */
+    protected Vector orderSnapshot( String channelName )
+    {
+      Vector ordered = new Vector();
+      if ( channelName == null )
+        return ordered;
+
+      Set allObjects = objectRepository.getAllObjects();
+      pdLongHashSet visited = new pdLongHashSet( allObjects.size() );
+      Vector chain = new Vector();
+
+      Iterator objects = allObjects.iterator();
+      while ( objects.hasNext() )
         {
-          pdObjectCreationEvent creationEvent = new pdObjectCreationEvent( currObject, false, true );
-          super.acceptEvent( creationEvent );
-          sentList.add( currObject );
+          pdBaseObject currObject = ( pdBaseObject ) ( ( ( Map.Entry ) objects.next() ).getValue() );
+
+          // Collect this object and its unvisited ancestors, child first.
+          while ( ( currObject != null ) && visited.add( currObject.getID() ) )
+            {
+              chain.addElement( currObject );
+              if ( !( currObject instanceof pdCoordinateTreeObject ) )
+                break;
+
+              long parentID = ( ( pdCoordinateTreeObject ) currObject ).getParentID();
+              if ( parentID == pdCoordinateTreeObject.NO_PARENT )
+                break;
+              currObject = findObject( parentID );
+            }
+
+          // Add the chain root first.
+          for ( int i = chain.size() - 1; i >= 0; i-- )
+            {
+              pdBaseObject chainObject = ( pdBaseObject ) chain.elementAt( i );
+              if ( chainObject.getIsDistributed() &&
+                   channelName.equals( chainObject.getChannelName() ) )
+                ordered.addElement( chainObject );
+            }
+          chain.removeAllElements();
+        }
+
+      return ordered;
+    }
+
+
+    /**
+     * Send one event of an object snapshot: creations go straight to
+     * the network and listeners, death notices through acceptEvent.
+     * A paced snapshot may be sent well after it was made, so each
+     * event is checked against the repository first: a creation is
+     * sent afresh from the object as it is now, and only if it's still
+     * here; a death notice only if the object is still dead.
+     */
+    protected synchronized void sendSnapshotEvent( pdBasicEvent event )
+    {
+      if ( event instanceof pdObjectDestructionEvent )
+        {
+          long targetID = ( ( pdObjectDestructionEvent ) event ).getTargetID();
+          if ( !killedDistributedObjects.contains( targetID ) )
+            {
+              bbPrinter.bbDebug( "ObjectAndEventManager: not sending stale death notice for " + targetID + "\n" );
+              return ;
+            }
+          acceptEvent( event );
+        }
+      else if ( event instanceof pdObjectCreationEvent )
+        {
+          long objectID = ( ( pdObjectCreationEvent ) event ).getNewObject().getID();
+          pdBaseObject currObject = findObject( objectID );
+          if ( ( currObject == null ) || !currObject.getIsDistributed() )
+            {
+              bbPrinter.bbDebug( "ObjectAndEventManager: not sending stale creation event for " + objectID + "\n" );
+              return ;
+            }
+
+          if ( event instanceof pdObjectAndEventManagerSnapshotCreationEvent )
+            {
+              pdObjectAndEventManagerSnapshotCreationEvent snapshotEvent = ( pdObjectAndEventManagerSnapshotCreationEvent ) event;
+              super.acceptEvent( new pdObjectAndEventManagerSnapshotCreationEvent( currObject, snapshotEvent.getIndex(), snapshotEvent.getCount() ) );
+            }
+          else
+            {
+              super.acceptEvent( new pdObjectCreationEvent( currObject, false, true ) );
+            }
+        }
+      else
+        {
+          super.acceptEvent( event );
         }
     }
 
@@ -621,10 +887,7 @@ public class pdObjectAndEventManagerImpl extends pdEventDispatcherImpl implement
       super.setDefaultChannel( newDefaultChannel );
 
       // Ask for existing objects on this channel.
-      if ( this.defaultChannel != null )
-        {
-          defaultChannel.sendEvent( new pdObjectAndEventManagerSendAllObjectsEvent() );
-        }
+      requestAllObjects( this.defaultChannel );
     }
 
 
@@ -635,7 +898,7 @@ public class pdObjectAndEventManagerImpl extends pdEventDispatcherImpl implement
       super.joinChannel( channel );
 
       // Ask for existing objects on channel
-      channel.sendEvent( new pdObjectAndEventManagerSendAllObjectsEvent() );
+      requestAllObjects( channel );
     }
 
 
@@ -651,15 +914,39 @@ public class pdObjectAndEventManagerImpl extends pdEventDispatcherImpl implement
       boolean result = super._start();
       if ( result == true )
         {
+          if ( snapshotPacer != null )
+            snapshotPacer.start();
+
+          if ( sendAllResponder != null )
+            sendAllResponder.start();
+
+          if ( ingressQueue != null )
+            ingressQueue.start();
+
           bbPrinter.bbDebug( "ObjectAndEventManager: ASKING FOR ALL OBJECTS NOW\n" );
-          if ( defaultChannel != null )
-            defaultChannel.sendEvent( new pdObjectAndEventManagerSendAllObjectsEvent() );
+          requestAllObjects( defaultChannel );
         }
 
       return result;
     }
 
 
+    /** Stop the accessory threads. */
+    protected boolean _stop()
+    {
+      if ( ingressQueue != null )
+        ingressQueue.stop();
+
+      if ( snapshotPacer != null )
+        snapshotPacer.stop();
+
+      if ( sendAllResponder != null )
+        sendAllResponder.stop();
+
+      return super._stop();
+    }
+
+
     ///////////////////////////////////////////
     //                                       //
     //  pdObjectAndEventManagerImpl methods  //
@@ -682,16 +969,24 @@ public class pdObjectAndEventManagerImpl extends pdEventDispatcherImpl implement
 
       // If the newly created object is on our killed list (if it were
       // resurrected) take it off the killed list.
-      if ( killedDistributedObjects.contains( new Long( newObject.getID() ) ) )
-        {
-          killedDistributedObjects.remove( new Long( newObject.getID() ) );
-        }
+      killedDistributedObjects.remove( newObject.getID() );
 
       // Check is this is a deadbeat parent and reunite it with its orphan children.
       checkAndReuniteParent( newObject );
 
       // If we already have an object with this ID, stop...
-      if ( objectRepository.findObject( newObject.getID() ) != null )
+      pdBaseObject existingObject = objectRepository.findObject( newObject.getID() );
+
+      // Part of another holder's answer for this channel? Then we may
+      // not need to answer it ourselves.
+      if ( ( event instanceof pdObjectAndEventManagerSnapshotCreationEvent ) &&
+           ( existingObject != newObject ) && ( sendAllResponder != null ) )
+        {
+          pdObjectAndEventManagerSnapshotCreationEvent snapshotEvent = ( pdObjectAndEventManagerSnapshotCreationEvent ) event;
+          sendAllResponder.overheard( newObject.getChannelName(), snapshotEvent.getIndex(), snapshotEvent.getCount() );
+        }
+
+      if ( existingObject != null )
         { 
           bbPrinter.bbDebug( "ObjectAndEventManager: Got creation event for object I already have: " + newObject.getID() + "\n" );
           return ;
@@ -706,6 +1001,7 @@ public class pdObjectAndEventManagerImpl extends pdEventDispatcherImpl implement
       // Set the object's objectAndEventManager object and register it in the repository.
       objectRepository.registerObject( newObject );
       newObject.setObjectAndEventManager( this );
+      nameIndex.add( newObject );
     }
 
     
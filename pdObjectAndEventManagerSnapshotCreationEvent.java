@@ -0,0 +1,44 @@
+package pdObjectSubsystem.events;
+
+import pdObjectSubsystem.*;
+
+
+/**
+ * Creation event sent as part of an answer to a request for all
+ * objects. Each carries its place in the answer's creations, so a
+ * repository holder overhearing another's answer can tell one that has
+ * just begun from one already under way, and notice when it ends.
+ *
+ * @author BARS Team
+ */
+public class pdObjectAndEventManagerSnapshotCreationEvent extends pdObjectCreationEvent
+  {
+    /** Place of this creation in the answer, from 0. */
+    protected int index = 0;
+
+    /** Number of creations in the answer. */
+    protected int count = 0;
+
+
+    /** Make a new creation event for an object, as creation index of count in an answer. */
+    public pdObjectAndEventManagerSnapshotCreationEvent( pdBaseObject newObject, int index, int count )
+    {
+      super( newObject, false, true );
+      this.index = index;
+      this.count = count;
+    }
+
+
+    /** Get the place of this creation in the answer, from 0. */
+    public int getIndex()
+    {
+      return index;
+    }
+
+
+    /** Get the number of creations in the answer. */
+    public int getCount()
+    {
+      return count;
+    }
+  }
@@ -0,0 +1,113 @@
+package pdObjectSubsystem;
+
+import java.util.*;
+
+
+/**
+ * Index of objects by name, for the object and event manager's
+ * findObject( String ). Several objects may share a name; the one with
+ * the lowest ID among those indexed under it is found.
+ * <P>
+ * Whoever renames an object should tell the index through renamed().
+ * Renames it isn't told about are caught as they're met: a found
+ * object's name is checked, and one that no longer matches is moved to
+ * its new name and skipped.
+ *
+ * @author BARS Team
+ */
+public class pdObjectNameIndex
+  {
+    /** Vector of objects by name. */
+    protected Hashtable objectsByName = new Hashtable();
+
+    /** Name each object is indexed under, String by Long ID. */
+    protected Hashtable indexedNames = new Hashtable();
+
+
+    /** Index an object under its current name. */
+    public synchronized void add( pdBaseObject object )
+    {
+      remove( object );
+
+      String name = object.getName();
+      if ( name == null )
+        return ;
+
+      Vector named = ( Vector ) objectsByName.get( name );
+      if ( named == null )
+        {
+          named = new Vector( 1 );
+          objectsByName.put( name, named );
+        }
+      named.addElement( object );
+      indexedNames.put( new Long( object.getID() ), name );
+    }
+
+
+    /** Take an object out of the index. */
+    public synchronized void remove( pdBaseObject object )
+    {
+      String name = ( String ) indexedNames.remove( new Long( object.getID() ) );
+      if ( name == null )
+        return ;
+
+      Vector named = ( Vector ) objectsByName.get( name );
+      if ( named != null )
+        {
+          for ( int i = named.size() - 1; i >= 0; i-- )
+            if ( ( ( pdBaseObject ) named.elementAt( i ) ).getID() == object.getID() )
+              named.removeElementAt( i );
+
+          if ( named.isEmpty() )
+            objectsByName.remove( name );
+        }
+    }
+
+
+    /** An object's name has changed; index it under the new one. */
+    public synchronized void renamed( pdBaseObject object )
+    {
+      if ( indexedNames.containsKey( new Long( object.getID() ) ) )
+        add( object );
+    }
+
+
+    /**
+     * Find the lowest-ID object indexed under this name that still has it,
+     * or null. Objects that have been renamed are moved as we go.
+     */
+    public synchronized pdBaseObject find( String name )
+    {
+      Vector named = ( Vector ) objectsByName.get( name );
+      if ( named == null )
+        return null;
+
+      pdBaseObject found = null;
+      Vector renamed = null;
+      for ( int i = 0; i < named.size(); i++ )
+        {
+          pdBaseObject object = ( pdBaseObject ) named.elementAt( i );
+          if ( !name.equals( object.getName() ) )
+            {
+              if ( renamed == null )
+                renamed = new Vector();
+              renamed.addElement( object );
+            }
+          else if ( ( found == null ) || ( object.getID() < found.getID() ) )
+            found = object;
+        }
+
+      if ( renamed != null )
+        for ( int i = 0; i < renamed.size(); i++ )
+          add( ( pdBaseObject ) renamed.elementAt( i ) );
+
+      return found;
+    }
+
+
+    /** Number of objects indexed. */
+    public synchronized int size()
+    {
+      return indexedNames.size();
+    }
+  }
@@ -0,0 +1,171 @@
+package pdObjectSubsystem;
+
+import java.util.*;
+
+import bamboo.bbPrinter;
+
+import pdEventTransportSubsystem.events.*;
+
+
+/**
+ * Sends the events of an object snapshot (creations, then death
+ * notices) for a manager at a steady rate, on its own thread, instead
+ * of in one burst from the thread that asked for the snapshot. Events
+ * go out in small batches every BATCH_INTERVAL milliseconds; snapshots
+ * queued while another is going out follow it in order.
+ *
+ * @author BARS Team
+ */
+public class pdObjectSnapshotPacer implements Runnable
+  {
+    /** Milliseconds between batches. */
+    public static final long BATCH_INTERVAL = 50;
+
+    /** The manager whose snapshots we send. */
+    protected pdObjectAndEventManagerImpl manager = null;
+
+    /** Events waiting to go out, oldest first. */
+    protected Vector pending = new Vector();
+
+    /** Events sent per batch. */
+    protected int batchSize = 1;
+
+    /** Is the pacer thread running? */
+    protected boolean running = false;
+
+    /** The pacer thread. */
+    protected Thread pacerThread = null;
+
+    /** Number of snapshots queued. */
+    protected long snapshotCount = 0;
+
+    /** Number of events sent. */
+    protected long sentCount = 0;
+
+
+    /** Make a new pacer sending about eventsPerSecond snapshot events a second for this manager. */
+    public pdObjectSnapshotPacer( pdObjectAndEventManagerImpl manager, int eventsPerSecond )
+    {
+      this.manager = manager;
+      this.batchSize = Math.max( 1, ( int ) ( ( eventsPerSecond * BATCH_INTERVAL ) / 1000 ) );
+    }
+
+
+    /** Start the pacer thread. */
+    public synchronized void start()
+    {
+      if ( running )
+        return ;
+
+      running = true;
+      pacerThread = new Thread( this, "pdObjectSnapshotPacer" );
+      pacerThread.setDaemon( true );
+      pacerThread.start();
+    }
+
+
+    /** Stop the pacer thread; anything still waiting is dropped. */
+    public synchronized void stop()
+    {
+      running = false;
+      pending.removeAllElements();
+      notifyAll();
+    }
+
+
+    /** Queue a snapshot's events to be sent in order. */
+    public synchronized void send( Vector events )
+    {
+      boolean wasEmpty = pending.isEmpty();
+      for ( int i = 0; i < events.size(); i++ )
+        pending.addElement( events.elementAt( i ) );
+      snapshotCount++;
+
+      if ( wasEmpty )
+        notifyAll();
+    }
+
+
+    /** Take the next batch of events, waiting for some if need be. Returns null once stopped. */
+    protected synchronized Vector takeBatch()
+    {
+      while ( pending.isEmpty() )
+        {
+          if ( !running )
+            return null;
+
+          try
+            {
+              wait();
+            }
+          catch ( InterruptedException e )
+            {
+              bbPrinter.bbDebug( "pdObjectSnapshotPacer: interrupted\n" );
+            }
+        }
+
+      int count = Math.min( batchSize, pending.size() );
+      Vector batch = new Vector( count );
+      for ( int i = 0; i < count; i++ )
+        batch.addElement( pending.elementAt( i ) );
+      pending.subList( 0, count ).clear();
+
+      return batch;
+    }
+
+
+    /** Send batches of events until stopped. */
+    public void run()
+    {
+      Vector batch;
+      while ( ( batch = takeBatch() ) != null )
+        {
+          for ( int i = 0; i < batch.size(); i++ )
+            {
+              try
+                {
+                  manager.sendSnapshotEvent( ( pdBasicEvent ) batch.elementAt( i ) );
+                }
+              catch ( Exception e )
+                {
+                  e.printStackTrace();
+                }
+            }
+
+          synchronized ( this )
+            {
+              sentCount += batch.size();
+            }
+
+          try
+            {
+              Thread.sleep( BATCH_INTERVAL );
+            }
+          catch ( InterruptedException e )
+            {
+              bbPrinter.bbDebug( "pdObjectSnapshotPacer: interrupted\n" );
+            }
+        }
+    }
+
+
+    /** Number of events waiting to go out. */
+    public synchronized int size()
+    {
+      return pending.size();
+    }
+
+
+    /** Number of snapshots queued. */
+    public synchronized long getSnapshotCount()
+    {
+      return snapshotCount;
+    }
+
+
+    /** Number of events sent. */
+    public synchronized long getSentCount()
+    {
+      return sentCount;
+    }
+  }
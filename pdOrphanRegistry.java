@@ -0,0 +1,217 @@
+package pdObjectSubsystem;
+
+import pdEventTransportSubsystem.*;
+
+
+/**
+ * Objects that arrived before their parents, waiting to be reunited
+ * with them. Every map is keyed on primitive IDs: each orphan's parent,
+ * and per parent a list of its waiting children threaded through a
+ * next-sibling map, so reuniting a parent takes time proportional to
+ * the children waiting for it.
+ * <P>
+ * An orphan whose parent hasn't turned up within timeoutMillis is
+ * given up on. A first-in, first-out ring of orphans and the times
+ * they were added decides when; entries for orphans already reunited
+ * are just skipped.
+ *
+ * @author BARS Team
+ */
+public class pdOrphanRegistry
+  {
+    /** Marks the end of a list of children. */
+    protected static final long NO_CHILD = Long.MIN_VALUE;
+
+    /** Parent of each orphan. */
+    protected pdLongHashMap childToParent = new pdLongHashMap();
+
+    /** First waiting child of each parent. */
+    protected pdLongHashMap parentToFirstChild = new pdLongHashMap();
+
+    /** Next waiting child of the same parent, for each orphan not last in its list. */
+    protected pdLongHashMap childToNextSibling = new pdLongHashMap();
+
+    /** When each orphan was added, in milliseconds. */
+    protected pdLongHashMap childToAddTime = new pdLongHashMap();
+
+    /** Ring of orphans, oldest first from head. */
+    protected long[] ringIDs = new long[ 64 ];
+
+    /** Time each orphan in the ring was added, in milliseconds. */
+    protected long[] ringTimes = new long[ 64 ];
+
+    /** Index of the oldest entry in the ring. */
+    protected int head = 0;
+
+    /** Number of entries in the ring. */
+    protected int count = 0;
+
+    /** How long an orphan may wait for its parent, in milliseconds. */
+    protected long timeoutMillis = 300000;
+
+    /** Number of orphans given up on. */
+    protected long expiredCount = 0;
+
+
+    /** Make a new registry giving up on orphans after timeoutMillis. */
+    public pdOrphanRegistry( long timeoutMillis )
+    {
+      this.timeoutMillis = timeoutMillis;
+    }
+
+
+    /** Add an orphan waiting for parentID; returns false if it's already waiting. */
+    public synchronized boolean add( long childID, long parentID )
+    {
+      long now = System.currentTimeMillis();
+      expire( now );
+
+      if ( childToParent.containsKey( childID ) )
+        return false;
+
+      childToParent.put( childID, parentID );
+      long firstChild = parentToFirstChild.get( parentID, NO_CHILD );
+      if ( firstChild != NO_CHILD )
+        childToNextSibling.put( childID, firstChild );
+      parentToFirstChild.put( parentID, childID );
+      childToAddTime.put( childID, now );
+
+      if ( count == ringIDs.length )
+        resize( ringIDs.length * 2 );
+      int tail = ( head + count ) % ringIDs.length;
+      ringIDs[ tail ] = childID;
+      ringTimes[ tail ] = now;
+      count++;
+
+      return true;
+    }
+
+
+    /** Is this object waiting for its parent? */
+    public synchronized boolean contains( long childID )
+    {
+      return childToParent.containsKey( childID );
+    }
+
+
+    /** Get the parent an orphan is waiting for, or parentIfMissing if it isn't an orphan. */
+    public synchronized long getParent( long childID, long parentIfMissing )
+    {
+      return childToParent.get( childID, parentIfMissing );
+    }
+
+
+    /** Take out and return every orphan waiting for this parent. */
+    public synchronized long[] removeChildrenOf( long parentID )
+    {
+      expire( System.currentTimeMillis() );
+
+      long firstChild = parentToFirstChild.get( parentID, NO_CHILD );
+      if ( firstChild == NO_CHILD )
+        return new long[ 0 ];
+
+      int numChildren = 0;
+      for ( long child = firstChild; child != NO_CHILD; child = childToNextSibling.get( child, NO_CHILD ) )
+        numChildren++;
+
+      long[] children = new long[ numChildren ];
+      long child = firstChild;
+      for ( int i = 0; i < numChildren; i++ )
+        {
+          children[ i ] = child;
+          long next = childToNextSibling.get( child, NO_CHILD );
+          childToParent.remove( child );
+          childToNextSibling.remove( child );
+          childToAddTime.remove( child );
+          child = next;
+        }
+      parentToFirstChild.remove( parentID );
+
+      return children;
+    }
+
+
+    /** Take an orphan out, wherever it is in its parent's list. */
+    public synchronized boolean remove( long childID )
+    {
+      if ( !childToParent.containsKey( childID ) )
+        return false;
+
+      long parentID = childToParent.get( childID, NO_CHILD );
+
+      long next = childToNextSibling.get( childID, NO_CHILD );
+      long firstChild = parentToFirstChild.get( parentID, NO_CHILD );
+      if ( firstChild == childID )
+        {
+          if ( next == NO_CHILD )
+            parentToFirstChild.remove( parentID );
+          else
+            parentToFirstChild.put( parentID, next );
+        }
+      else
+        {
+          long previous = firstChild;
+          while ( childToNextSibling.get( previous, NO_CHILD ) != childID )
+            previous = childToNextSibling.get( previous, NO_CHILD );
+
+          if ( next == NO_CHILD )
+            childToNextSibling.remove( previous );
+          else
+            childToNextSibling.put( previous, next );
+        }
+
+      childToParent.remove( childID );
+      childToNextSibling.remove( childID );
+      childToAddTime.remove( childID );
+      return true;
+    }
+
+
+    /** Number of orphans waiting. */
+    public synchronized int size()
+    {
+      return childToParent.size();
+    }
+
+
+    /** Number of orphans given up on. */
+    public synchronized long getExpiredCount()
+    {
+      return expiredCount;
+    }
+
+
+    /** Give up on orphans that have waited longer than the timeout. */
+    protected void expire( long now )
+    {
+      while ( ( count > 0 ) && ( ( now - ringTimes[ head ] ) > timeoutMillis ) )
+        {
+          long childID = ringIDs[ head ];
+          if ( childToAddTime.get( childID, -1 ) == ringTimes[ head ] )
+            {
+              remove( childID );
+              expiredCount++;
+            }
+          head = ( head + 1 ) % ringIDs.length;
+          count--;
+        }
+    }
+
+
+    /** Copy the ring into arrays of a new size. */
+    protected void resize( int newSize )
+    {
+      long[] newIDs = new long[ newSize ];
+      long[] newTimes = new long[ newSize ];
+      for ( int i = 0; i < count; i++ )
+        {
+          int slot = ( head + i ) % ringIDs.length;
+          newIDs[ i ] = ringIDs[ slot ];
+          newTimes[ i ] = ringTimes[ slot ];
+        }
+
+      ringIDs = newIDs;
+      ringTimes = newTimes;
+      head = 0;
+    }
+  }
@@ -0,0 +1,64 @@
+package pdEventTransportSubsystem;
+
+
+/**
+ * A message being reassembled from fragments by pdFragmentAssembler.
+ * Its buffer comes from a pdByteArrayPool, so it may be longer than
+ * the message.
+ *
+ * @author BARS Team
+ */
+public class pdPartialMessage
+  {
+    /** Sender and message ID. */
+    protected pdFragmentKey key = null;
+
+    /** Where the fragments are put together. */
+    protected byte[] buffer = null;
+
+    /** Length of the whole message, or -1 if we don't know it yet. */
+    protected int length = -1;
+
+    /** Bytes of the message received so far. */
+    protected int bytesReceived = 0;
+
+    /** When we last got a fragment of this message, in milliseconds. */
+    protected long lastUpdateTime = 0;
+
+
+    /** Make a new partial message. */
+    public pdPartialMessage( pdFragmentKey key, byte[] buffer, long now )
+    {
+      this.key = key;
+      this.buffer = buffer;
+      this.lastUpdateTime = now;
+    }
+
+
+    /** Get the sender and message ID. */
+    public pdFragmentKey getKey()
+    {
+      return key;
+    }
+
+
+    /** Get the buffer holding the message. */
+    public byte[] getBuffer()
+    {
+      return buffer;
+    }
+
+
+    /** Get the length of the message, or -1 if not yet known. */
+    public int getLength()
+    {
+      return length;
+    }
+
+
+    /** Have we got every byte of the message? */
+    public boolean isComplete()
+    {
+      return ( ( length >= 0 ) && ( bytesReceived >= length ) );
+    }
+  }
@@ -0,0 +1,19 @@
+package pdEventTransportSubsystem;
+
+
+/**
+ * RawEventDecoder interface: a transporter that can turn the bytes it
+ * received into events and deliver them. pdEventReceivePipeline calls
+ * this from its decode threads.
+ *
+ * @author BARS Team
+ */
+public interface pdRawEventDecoder
+  {
+    /**
+     * Decode and deliver the events in length bytes of buffer from
+     * offset, received from sender. The buffer belongs to the caller
+     * and must not be kept.
+     */
+    public void decodeRawEvent( Object sender, byte[] buffer, int offset, int length );
+  }
@@ -0,0 +1,25 @@
+package pdEventTransportSubsystem;
+
+import pdEventTransportSubsystem.events.*;
+
+
+/**
+ * SUMPRoutingPolicy interface: decides which of a SUMP transporter's
+ * lanes -- LRMP or raw IP multicast -- an outgoing event takes. An
+ * event takes only one: a reliable event's copy over IP multicast
+ * could overtake the events ahead of it on LRMP.
+ *
+ * @author BARS Team
+ */
+public interface pdSUMPRoutingPolicy
+  {
+    /** The reliable lane, LRMP. */
+    public static final int LRMP_LANE = 1;
+
+    /** The fast, unreliable lane, raw IP multicast. */
+    public static final int MULTICAST_LANE = 2;
+
+
+    /** Pick the lane for this event, which transporter is about to send. */
+    public int chooseLane( pdBasicEvent event, pdEventTransporterSUMPImpl transporter );
+  }
@@ -0,0 +1,63 @@
+package pdEventTransportSubsystem;
+
+import java.util.*;
+
+import pdEventTransportSubsystem.events.*;
+import pdKernel.*;
+
+
+/**
+ * SUMP routing that looks at more than the reliable bit: event classes
+ * named in SUMPMulticastClasses on the command line (comma-separated)
+ * always go over IP multicast, and those in SUMPLRMPClasses always over
+ * LRMP. Everything else goes by its reliable bit.
+ * <P>
+ * Reliable events aren't moved off LRMP when it's behind: one sent over
+ * IP multicast would overtake older events for the same object still
+ * queued on LRMP, which would then land last and undo it.
+ *
+ * @author BARS Team
+ */
+public class pdSUMPRoutingPolicyAdaptiveImpl implements pdSUMPRoutingPolicy
+  {
+    /** Lane forced for an event class, Integer by class name. */
+    protected Hashtable classLanes = new Hashtable();
+
+
+    /** Make a new adaptive policy configured from the command line. */
+    public pdSUMPRoutingPolicyAdaptiveImpl()
+    {
+      addClassLanes( CommandLine.get( "SUMPMulticastClasses", "" ), MULTICAST_LANE );
+      addClassLanes( CommandLine.get( "SUMPLRMPClasses", "" ), LRMP_LANE );
+    }
+
+
+    /** Send every event of this class over this lane. */
+    public synchronized void setClassLane( String className, int lane )
+    {
+      classLanes.put( className, new Integer( lane ) );
+    }
+
+
+    /** Add each class named in a comma-separated list with this lane. */
+    protected void addClassLanes( String classNames, int lane )
+    {
+      StringTokenizer tokens = new StringTokenizer( classNames, ", " );
+      while ( tokens.hasMoreTokens() )
+        setClassLane( tokens.nextToken(), lane );
+    }
+
+
+    /** Pick the lane for this event. */
+    public synchronized int chooseLane( pdBasicEvent event, pdEventTransporterSUMPImpl transporter )
+    {
+      Integer classLane = ( Integer ) classLanes.get( event.getClass().getName() );
+      if ( classLane != null )
+        return classLane.intValue();
+
+      if ( !event.getTransportReliably() )
+        return MULTICAST_LANE;
+
+      return LRMP_LANE;
+    }
+  }
@@ -0,0 +1,19 @@
+package pdEventTransportSubsystem;
+
+import pdEventTransportSubsystem.events.*;
+
+
+/**
+ * The original SUMP routing: reliable events over LRMP, the rest over
+ * raw IP multicast.
+ *
+ * @author BARS Team
+ */
+public class pdSUMPRoutingPolicyReliableImpl implements pdSUMPRoutingPolicy
+  {
+    /** LRMP if the event wants reliable transport, otherwise IP multicast. */
+    public int chooseLanes( pdBasicEvent event, pdEventTransporterSUMPImpl transporter )
+    {
+      return ( event.getTransportReliably() ? LRMP_LANE : MULTICAST_LANE );
+    }
+  }
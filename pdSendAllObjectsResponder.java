@@ -0,0 +1,297 @@
+package pdObjectSubsystem;
+
+import java.util.*;
+
+import bamboo.bbPrinter;
+
+
+/**
+ * Answers requests for all objects for a repository holder so that,
+ * with several holders on a channel, a joining node usually gets one
+ * replay instead of one from each. Each request is answered after a
+ * random backoff of up to backoffMillis; if we overhear another holder
+ * begin a full replay of the same channel in the meantime, ours is
+ * called off. We then follow that replay, and if it goes quiet for
+ * REPLAY_SILENCE milliseconds before its last creation, we answer
+ * after all.
+ * Requests for a channel that already has an answer pending are merged
+ * into it, since the replay goes to the whole channel and hasn't begun
+ * yet. A request that comes in once a replay has begun gets an answer
+ * of its own, because it would miss what was sent before it.
+ *
+ * @author BARS Team
+ */
+public class pdSendAllObjectsResponder implements Runnable
+  {
+    /** How long an overheard replay may go quiet before we answer after all, in milliseconds. */
+    public static final long REPLAY_SILENCE = 2000;
+
+    /** The manager we answer for. */
+    protected pdObjectAndEventManagerImpl manager = null;
+
+    /** Longest we wait before answering, in milliseconds. */
+    protected long backoffMillis = 0;
+
+    /** Picks the backoffs. */
+    protected Random random = new Random();
+
+    /** When each channel with an answer pending is due, by channel name. */
+    protected Hashtable dueTimes = new Hashtable();
+
+    /**
+     * When each channel whose answer was called off should be answered
+     * after all, unless the overheard replay goes on, by channel name.
+     */
+    protected Hashtable watchDeadlines = new Hashtable();
+
+    /** Is the responder thread running? */
+    protected boolean running = false;
+
+    /** The responder thread. */
+    protected Thread responderThread = null;
+
+    /** Number of requests received. */
+    protected long requestCount = 0;
+
+    /** Number of requests that found an answer already pending. */
+    protected long duplicateCount = 0;
+
+    /** Number of answers called off because another holder answered. */
+    protected long cancelledCount = 0;
+
+    /** Number of answers sent. */
+    protected long answeredCount = 0;
+
+    /** Number of answers queued again because the overheard replay went quiet. */
+    protected long rearmedCount = 0;
+
+
+    /** Make a new responder for this manager. */
+    public pdSendAllObjectsResponder( pdObjectAndEventManagerImpl manager, long backoffMillis )
+    {
+      this.manager = manager;
+      this.backoffMillis = backoffMillis;
+    }
+
+
+    /** Start the responder thread. */
+    public synchronized void start()
+    {
+      if ( running )
+        return ;
+
+      running = true;
+      responderThread = new Thread( this, "pdSendAllObjectsResponder" );
+      responderThread.setDaemon( true );
+      responderThread.start();
+    }
+
+
+    /** Stop the responder thread; pending answers are dropped. */
+    public synchronized void stop()
+    {
+      running = false;
+      dueTimes.clear();
+      watchDeadlines.clear();
+      notifyAll();
+    }
+
+
+    /** Take a request for all objects on this channel. */
+    public synchronized void request( String channelName )
+    {
+      String key = keyFor( channelName );
+      requestCount++;
+
+      if ( dueTimes.containsKey( key ) )
+        {
+          duplicateCount++;
+          bbPrinter.bbDebug( "pdSendAllObjectsResponder: answer already pending for channel " + channelName + "\n" );
+        }
+      queue( key );
+    }
+
+
+    /** Queue an answer for a channel after a backoff, unless one is already pending. */
+    protected void queue( String key )
+    {
+      if ( dueTimes.containsKey( key ) )
+        return ;
+
+      long backoff = 0;
+      if ( backoffMillis > 0 )
+        backoff = ( long ) ( random.nextDouble() * backoffMillis );
+
+      dueTimes.put( key, new Long( System.currentTimeMillis() + backoff ) );
+      notifyAll();
+    }
+
+
+    /**
+     * We overheard creation index of count in another holder's answer
+     * for this channel. If that replay is just beginning, it
+     * reaches everyone our pending answer is for, so ours is called off
+     * and we follow the replay instead; one already under way may have
+     * begun before our requester joined, so it doesn't count.
+     */
+    public synchronized void overheard( String channelName, int index, int count )
+    {
+      String key = keyFor( channelName );
+      long now = System.currentTimeMillis();
+
+      if ( ( index == 0 ) && ( dueTimes.remove( key ) != null ) )
+        {
+          cancelledCount++;
+          watchDeadlines.put( key, new Long( now + REPLAY_SILENCE ) );
+          bbPrinter.bbDebug( "pdSendAllObjectsResponder: another holder is answering for channel " + channelName + "\n" );
+        }
+
+      if ( watchDeadlines.containsKey( key ) )
+        {
+          if ( index >= count - 1 )
+            {
+              watchDeadlines.remove( key );
+            }
+          else
+            {
+              watchDeadlines.put( key, new Long( now + REPLAY_SILENCE ) );
+              notifyAll();
+            }
+        }
+    }
+
+
+    /** Queue again the answers whose overheard replays have gone quiet, and return when the next one will. */
+    protected long rearmQuiet( long now )
+    {
+      long nextDeadline = Long.MAX_VALUE;
+      Vector quiet = new Vector();
+      Enumeration keys = watchDeadlines.keys();
+      while ( keys.hasMoreElements() )
+        {
+          String key = ( String ) keys.nextElement();
+          long deadline = ( ( Long ) watchDeadlines.get( key ) ).longValue();
+          if ( deadline <= now )
+            quiet.addElement( key );
+          else if ( deadline < nextDeadline )
+            nextDeadline = deadline;
+        }
+
+      for ( int i = 0; i < quiet.size(); i++ )
+        {
+          String key = ( String ) quiet.elementAt( i );
+          watchDeadlines.remove( key );
+          rearmedCount++;
+          bbPrinter.bbDebug( "pdSendAllObjectsResponder: replay of channel " + key + " went quiet; answering after all\n" );
+          queue( key );
+        }
+
+      return nextDeadline;
+    }
+
+
+    /** Take the next answer that's due, waiting for one if need be. Returns null once stopped. */
+    protected synchronized String takeDue()
+    {
+      while ( running )
+        {
+          long now = System.currentTimeMillis();
+          long nextDeadline = rearmQuiet( now );
+          String nextKey = null;
+          long nextDue = Long.MAX_VALUE;
+          Enumeration keys = dueTimes.keys();
+          while ( keys.hasMoreElements() )
+            {
+              String key = ( String ) keys.nextElement();
+              long due = ( ( Long ) dueTimes.get( key ) ).longValue();
+              if ( due < nextDue )
+                {
+                  nextKey = key;
+                  nextDue = due;
+                }
+            }
+
+          if ( ( nextKey != null ) && ( nextDue <= now ) )
+            {
+              dueTimes.remove( nextKey );
+              answeredCount++;
+              return nextKey;
+            }
+
+          long nextWake = Math.min( nextDue, nextDeadline );
+          try
+            {
+              if ( nextWake == Long.MAX_VALUE )
+                wait();
+              else
+                wait( Math.max( 1, nextWake - now ) );
+            }
+          catch ( InterruptedException e )
+            {
+              bbPrinter.bbDebug( "pdSendAllObjectsResponder: interrupted\n" );
+            }
+        }
+
+      return null;
+    }
+
+
+    /** Send answers as they come due until stopped. */
+    public void run()
+    {
+      String key;
+      while ( ( key = takeDue() ) != null )
+        {
+          try
+            {
+              manager.sendAllObjects( ( key.length() == 0 ) ? null : key );
+            }
+          catch ( Exception e )
+            {
+              e.printStackTrace();
+            }
+        }
+    }
+
+
+    /** Hashtable key for a channel name, which may be null. */
+    protected String keyFor( String channelName )
+    {
+      return ( ( channelName == null ) ? "" : channelName );
+    }
+
+
+    /** Number of requests received. */
+    public synchronized long getRequestCount()
+    {
+      return requestCount;
+    }
+
+
+    /** Number of requests that found an answer already pending. */
+    public synchronized long getDuplicateCount()
+    {
+      return duplicateCount;
+    }
+
+
+    /** Number of answers called off because another holder answered. */
+    public synchronized long getCancelledCount()
+    {
+      return cancelledCount;
+    }
+
+
+    /** Number of answers sent. */
+    public synchronized long getAnsweredCount()
+    {
+      return answeredCount;
+    }
+
+
+    /** Number of answers queued again because the overheard replay went quiet. */
+    public synchronized long getRearmedCount()
+    {
+      return rearmedCount;
+    }
+  }